@@ -0,0 +1,427 @@
+package miju.rpg.ugmt;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Synthetic campaign for benchmarks and load tests. Writes a data root with
+ * characters, tagged notes, a rule set with calculated attributes, skills,
+ * equipment and spells, a character sheet template, two views, a battle map
+ * and some static files. The
+ * content is derived from a fixed seed, so runs are comparable. Can be run
+ * stand-alone to create a root for a server: <em>Campaign dir [chars]</em>.
+ */
+public final class Campaign {
+    /** Rules version of all characters. */
+    public static final String RULES = "bench";
+
+    /** Character sheet template. */
+    public static final String SHEET = "char1.svg";
+
+    /** Tagged view XSL relative to the root. */
+    public static final String TAGGED_XSL = "views/tagged.xsl";
+
+    /** Standard view directory relative to the root. */
+    public static final String VIEW = "views/all";
+
+    /** Battle map id. */
+    public static final String MAP = "t0";
+
+    /** Side of the battle map. */
+    public static final int MAP_SIDE = 2048;
+
+    /** Static files. */
+    public static final String[] STATIC = {"index.html", "app.js"};
+
+    /** Tag of all notes. */
+    public static final String LORE = "lore";
+
+    /** Parties, notes and characters are tagged with one. */
+    public static final int PARTIES = 8;
+
+    /** Notes per character. */
+    public static final int NOTES_PER_CHAR = 4;
+
+    /** Basic attributes. */
+    private static final String[] ATTRIBUTES = {"Str", "Dex", "Con", "Int", "Wis", "Cha"};
+
+    /** Skills by top level group, first the combat skills. */
+    private static final String[][] SKILLS = {
+        {"Combat", "Sword", "Axe", "Bow", "Spear", "Dagger", "Brawl"},
+        {"Lore", "History", "Arcana", "Nature", "Religion"},
+        {"Craft", "Smithing", "Alchemy", "Carpentry"},
+        {"Perception"}, {"Stealth"}, {"Athletics"}, {"Riding"}, {"Swimming"},
+    };
+
+    /** Equipment: name, type, weight, cost. */
+    private static final String[][] EQUIPMENT = {
+        {"Sword", "Weapon", "3", "15"}, {"Axe", "Weapon", "4", "10"}, {"Bow", "Weapon", "2", "30"},
+        {"Dagger", "Weapon", "1", "2"}, {"Chain Mail", "Armor", "20", "75"}, {"Shield", "Armor", "6", "10"},
+        {"Rope", "Gear", "10", "1"}, {"Torch", "Gear", "1", "1"}, {"Rations", "Gear", "1", "1"},
+        {"Arrows", "Gear", "1", "1"},
+    };
+
+    /** Spells. */
+    private static final String[] SPELLS = {"Light", "Shield", "Sleep", "Fireball", "Heal", "Detect Magic"};
+
+    /** Root created for this JVM. */
+    private static Path root;
+
+    /** Size of the root created for this JVM. */
+    private static int rootChars;
+
+    /** Random content. */
+    private final Random random = new Random(4711);
+
+    /** Characters. */
+    private final int chars;
+
+    /**
+     * Constructor.
+     * @param aChars characters
+     */
+    private Campaign(final int aChars) {
+        chars = aChars;
+    }
+
+    /**
+     * Create the campaign in a temporary directory and make it the data root
+     * of this JVM. The root is read once by the server classes, so only one
+     * campaign can exist per JVM.
+     * @param chars characters
+     * @return root
+     * @throws IOException on error
+     */
+    public static synchronized Path get(final int chars) throws IOException {
+        if (root == null) {
+            root = Files.createTempDirectory("ugmt-campaign");
+            rootChars = chars;
+            write(root, chars);
+            System.setProperty("ROOT", root.toUri().toString());
+        }
+        else if (rootChars != chars) {
+            throw new IllegalStateException("Campaign of " + rootChars + " characters exists");
+        }
+        return root;
+    }
+
+    /**
+     * Write a campaign.
+     * @param absRoot root directory
+     * @param chars characters
+     * @throws IOException on error
+     */
+    public static void write(final Path absRoot, final int chars) throws IOException {
+        new Campaign(chars).write(absRoot);
+    }
+
+    /**
+     * Create a root for a server.
+     * @param args directory and optionally the number of characters (200)
+     * @throws IOException on error
+     */
+    public static void main(final String[] args) throws IOException {
+        write(Paths.get(args[0]).toAbsolutePath(), args.length > 1 ? Integer.parseInt(args[1]) : 200);
+    }
+
+    /**
+     * Write all files.
+     * @param absRoot root directory
+     * @throws IOException on error
+     */
+    private void write(final Path absRoot) throws IOException {
+        final String lax = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "  <xs:element name=\"%s\">\n"
+                + "    <xs:complexType>\n"
+                + "      <xs:sequence><xs:any processContents=\"lax\" minOccurs=\"0\" maxOccurs=\"unbounded\"/></xs:sequence>\n"
+                + "      <xs:anyAttribute processContents=\"lax\"/>\n"
+                + "    </xs:complexType>\n"
+                + "  </xs:element>\n"
+                + "</xs:schema>\n";
+        store(absRoot.resolve("data/ugmt.xsd"), String.format(lax, "data"));
+        store(absRoot.resolve("data/campaign.xml"), data());
+        store(absRoot.resolve("chars/" + RULES + "/rules.xsd"), String.format(lax, "rules"));
+        store(absRoot.resolve("chars/" + RULES + "/rules.xml"), rules());
+        store(absRoot.resolve("chars/" + RULES + "/" + SHEET), sheet());
+        store(absRoot.resolve(TAGGED_XSL), taggedView());
+        store(absRoot.resolve(VIEW + "/index.xsl"), standardView());
+        store(absRoot.resolve(STATIC[0]), "<!DOCTYPE html>\n<html><head><script src=\"app.js\"></script></head><body></body></html>\n");
+        final StringBuilder js = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            js.append("function f").append(i).append("(a) { return '").append(text(8)).append("' + a; }\n");
+        }
+        store(absRoot.resolve(STATIC[1]), js.toString());
+        Files.createDirectories(absRoot.resolve("maps"));
+        ImageIO.write(paint(MAP_SIDE), "png", absRoot.resolve("maps/battle.png").toFile());
+    }
+
+    /**
+     * Paint a synthetic map: smooth terrain with noise, which compresses like
+     * a painted battle map.
+     * @param side side
+     * @return image
+     */
+    public static BufferedImage paint(final int side) {
+        final BufferedImage ret = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(4711);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                final double h = Math.sin(x / 37.) + Math.cos(y / 23.) + Math.sin((x + y) / 61.);
+                final int g = (int) (110 + 40 * h) + random.nextInt(9);
+                final int r = h > 1 ? g : g / 2;
+                final int b = h < -1 ? 200 : g / 3;
+                ret.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Data file.
+     * @return content
+     */
+    private String data() {
+        final StringBuilder ret = new StringBuilder(header("data", "./ugmt.xsd"));
+        for (int i = 0; i < chars; i++) {
+            ret.append("<char id=\"c").append(i).append("\" rules=\"").append(RULES)
+                .append("\" permit=\"").append(i % 3 != 0).append("\">\n");
+            ret.append("  <tagged>").append(i % 5 == 0 ? "pc" : "npc").append("</tagged><tagged>party")
+                .append(i % PARTIES).append("</tagged>\n");
+            ret.append("  <attribute name=\"Name\" value=\"Hero ").append(i).append("\"/>\n");
+            ret.append("  <attribute name=\"Level\" value=\"").append(1 + random.nextInt(12)).append("\"/>\n");
+            ret.append("  <attribute name=\"Class1\" value=\"Fighter\"/>\n");
+            for (String attr : ATTRIBUTES) {
+                ret.append("  <attribute name=\"").append(attr).append("\" value=\"").append(8 + random.nextInt(11)).append("\"/>\n");
+            }
+            for (String[] group : SKILLS) {
+                for (int j = 1; j < Math.max(2, group.length); j++) {
+                    if (random.nextInt(3) == 0) {
+                        continue;
+                    }
+                    final String name = group.length == 1 ? group[0] : group[0] + "/" + group[j];
+                    ret.append("  <skill name=\"").append(name).append("\" ranks=\"").append(random.nextInt(5))
+                        .append('/').append(random.nextInt(3)).append("\" level=\"").append(random.nextInt(8)).append("\"/>\n");
+                }
+            }
+            for (String[] item : EQUIPMENT) {
+                if (random.nextBoolean()) {
+                    ret.append("  <equipment name=\"").append(item[0]);
+                    if (random.nextInt(4) == 0) {
+                        ret.append(" (").append(2 + random.nextInt(10)).append(')');
+                    }
+                    ret.append("\" type=\"").append(item[1]).append("\"/>\n");
+                }
+            }
+            for (String spell : SPELLS) {
+                if (random.nextInt(3) == 0) {
+                    ret.append("  <spell name=\"").append(spell).append("\"/>\n");
+                }
+            }
+            ret.append("  <note type=\"background\">").append(text(40)).append("</note>\n");
+            ret.append("  <note type=\"short-1\">").append(text(6)).append("</note>\n");
+            ret.append("  <image type=\"portrait\" file=\"c").append(i).append(".png\"/>\n");
+            ret.append("</char>\n");
+        }
+        for (int i = 0; i < chars * NOTES_PER_CHAR; i++) {
+            ret.append("<note id=\"n").append(i).append("\" permit=\"").append(i % 2 == 0).append("\">")
+                .append("<tagged>").append(LORE).append("</tagged><tagged>party").append(i % PARTIES).append("</tagged>")
+                .append("<tagged>c").append(random.nextInt(Math.max(1, chars))).append("</tagged>")
+                .append(text(60)).append("</note>\n");
+        }
+        ret.append("<tactics id=\"").append(MAP).append("\" file=\"maps/battle.png\" permit=\"true\"/>\n");
+        return ret.append("</data>\n").toString();
+    }
+
+    /**
+     * Rules file.
+     * @return content
+     */
+    private String rules() {
+        final StringBuilder ret = new StringBuilder(header("rules", "./rules.xsd"));
+        for (String attr : ATTRIBUTES) {
+            ret.append("<attribute name=\"").append(attr).append("\" mult=\"\"/>\n");
+            ret.append("<attribute name=\"Mod").append(attr).append("\" mult=\"\" rule=\"floor((u:attribute('")
+                .append(attr).append("') - 10) div 2)\"/>\n");
+        }
+        ret.append("<attribute name=\"Initiative\" mult=\"\" rule=\"u:sum(u:attribute('ModDex'), u:attribute('Level'))\"/>\n");
+        ret.append("<attribute name=\"HitPoints\" mult=\"\" rule=\"u:attribute('Level') * (6 + u:attribute('ModCon'))\"/>\n");
+        ret.append("<attribute name=\"Attack\" mult=\"\" rule=\"u:max(u:attribute('ModStr'), u:attribute('ModDex'))"
+            + " + u:table-lookup('Progression', u:attribute('Level'))\"/>\n");
+        ret.append("<attribute name=\"Defense\" mult=\"\" rule=\"u:ifthenelse(u:attribute('ModDex') &gt; 0,"
+            + " 10 + u:attribute('ModDex'), 10)\"/>\n");
+        ret.append("<table name=\"Progression\">\n");
+        for (int level = 1; level <= 20; level += 4) {
+            ret.append("  <row key0=\"").append(level).append(' ').append(level + 3).append("\" value=\"").append(level / 4 + 1).append("\"/>\n");
+        }
+        ret.append("</table>\n");
+        ret.append("<class name=\"Fighter\" value=\"count(//section[@name='Combat Skills']//skill[@name='$name']) * 2\"/>\n");
+        ret.append("<section name=\"Combat Skills\">\n");
+        ret.append("  <modifier name=\"value\" value=\"u:sum(u:parse(u:skill('$name', 'level')), u:attribute('ModStr'))\"/>\n");
+        ret.append("  <modifier name=\"total\" value=\"u:sum(u:parse(u:skill('$name', 'level')), u:attribute('Attack'))\"/>\n");
+        appendSkills(ret, SKILLS[0]);
+        ret.append("</section>\n");
+        ret.append("<section name=\"General Skills\">\n");
+        ret.append("  <modifier name=\"value\" value=\"u:sum(u:parse(u:skill('$name', 'level')), u:attribute('ModInt'))\"/>\n");
+        ret.append("  <modifier name=\"total\" value=\"u:sum(u:parse(u:skill('$name', 'level')), 0)\"/>\n");
+        for (int i = 1; i < SKILLS.length; i++) {
+            appendSkills(ret, SKILLS[i]);
+        }
+        ret.append("</section>\n");
+        ret.append("<section name=\"Talents\">\n");
+        ret.append("  <skill name=\"Alertness\" related=\"Perception,Bow\"/>\n");
+        ret.append("  <skill name=\"Weapon Focus\" related=\"Sword,Axe,Spear\"/>\n");
+        ret.append("</section>\n");
+        for (String[] item : EQUIPMENT) {
+            ret.append("<equipment name=\"").append(item[0]).append("\" type=\"").append(item[1]).append("\" wgs=\"")
+                .append(item[2]).append("\" value=\"u:sum(u:attribute('ModStr'), ").append(item[3]).append(")\" damage=\"1d6\"/>\n");
+        }
+        for (String spell : SPELLS) {
+            ret.append("<spell name=\"").append(spell).append("\" level=\"").append(1 + random.nextInt(5))
+                .append("\" school=\"Evocation\" range=\"30ft\" time=\"1\" duration=\"1min\" description=\"")
+                .append(text(20)).append("\"/>\n");
+        }
+        return ret.append("</rules>\n").toString();
+    }
+
+    /**
+     * Append a skill group.
+     * @param ret rules so far
+     * @param group group and skills
+     */
+    private static void appendSkills(final StringBuilder ret, final String[] group) {
+        if (group.length == 1) {
+            ret.append("  <skill name=\"").append(group[0]).append("\" attr=\"Wis\"/>\n");
+            return;
+        }
+        ret.append("  <skill name=\"").append(group[0]).append("\" attr=\"Str\">\n");
+        for (int j = 1; j < group.length; j++) {
+            ret.append("    <skill name=\"").append(group[j]).append("\"/>\n");
+        }
+        ret.append("  </skill>\n");
+    }
+
+    /**
+     * Character sheet template.
+     * @return content
+     */
+    private static String sheet() {
+        final StringBuilder ret = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"210mm\" height=\"297mm\">\n");
+        int y = 10;
+        for (String var : new String[] {"Name", "Id", "Portrait", "Background", "ShortNote-1", "Initiative", "HitPoints", "Attack", "Defense"}) {
+            ret.append("<text x=\"10\" y=\"").append(y += 5).append("\">$").append(var).append("</text>\n");
+        }
+        for (String attr : ATTRIBUTES) {
+            ret.append("<text x=\"10\" y=\"").append(y += 5).append("\">$").append(attr).append(" $Mod").append(attr).append("</text>\n");
+        }
+        for (int i = 1; i <= 8; i++) {
+            ret.append("<text x=\"10\" y=\"").append(y += 5).append("\">$SkCombat Skills-").append(i).append("N $SkCombat Skills-")
+                .append(i).append("V $SkCombat Skills-").append(i).append("T $SkCombat Skills-").append(i).append("C</text>\n");
+        }
+        for (int i = 1; i <= 12; i++) {
+            ret.append("<text x=\"10\" y=\"").append(y += 5).append("\">$Sk-").append(i).append("N $Sk-").append(i)
+                .append("V $Sk-").append(i).append("XP/$Sk-").append(i).append("XS $Sk-").append(i).append("TA</text>\n");
+        }
+        for (int i = 1; i <= 4; i++) {
+            ret.append("<text x=\"10\" y=\"").append(y += 5).append("\">$EqWeapon-").append(i).append("N $EqWeapon-").append(i)
+                .append("Rdamage $EqWeapon-").append(i).append("Rvalue</text>\n");
+        }
+        for (int i = 1; i <= 10; i++) {
+            ret.append("<text x=\"10\" y=\"").append(y += 5).append("\">$Eq-").append(i).append("N $Eq-").append(i).append("Rwgs</text>\n");
+        }
+        for (int i = 1; i <= 4; i++) {
+            ret.append("<text x=\"10\" y=\"").append(y += 5).append("\">$Spell-").append(i).append("N $Spell-").append(i)
+                .append("LV $Spell-").append(i).append("S $Spell-").append(i).append("R</text>\n");
+        }
+        return ret.append("</svg>\n").toString();
+    }
+
+    /**
+     * Tagged view XSL, lists the selected elements and their tags.
+     * @return content
+     */
+    private static String taggedView() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n"
+            + "  <xsl:output method=\"html\"/>\n"
+            + "  <xsl:template match=\"/\">\n"
+            + "    <div>\n"
+            + "      <xsl:for-each select=\"/data/*[starts-with(name(), 'doc_') and name() != 'doc_tag']/*\">\n"
+            + "        <p id=\"{@id}\"><xsl:value-of select=\"text()\"/></p>\n"
+            + "      </xsl:for-each>\n"
+            + "      <xsl:for-each select=\"/data/doc_tag/tag\">\n"
+            + "        <span><xsl:value-of select=\"@name\"/></span>\n"
+            + "      </xsl:for-each>\n"
+            + "    </div>\n"
+            + "  </xsl:template>\n"
+            + "</xsl:stylesheet>\n";
+    }
+
+    /**
+     * Standard view XSL, a table of all characters.
+     * @return content
+     */
+    private static String standardView() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n"
+            + "  <xsl:output method=\"html\"/>\n"
+            + "  <xsl:template match=\"/\">\n"
+            + "    <table>\n"
+            + "      <xsl:for-each select=\"/data/char\">\n"
+            + "        <xsl:sort select=\"attribute[@name='Name']/@value\"/>\n"
+            + "        <tr>\n"
+            + "          <td><xsl:value-of select=\"attribute[@name='Name']/@value\"/></td>\n"
+            + "          <td><xsl:value-of select=\"attribute[@name='Level']/@value\"/></td>\n"
+            + "          <td><xsl:value-of select=\"count(skill)\"/></td>\n"
+            + "          <td><xsl:value-of select=\"count(equipment)\"/></td>\n"
+            + "        </tr>\n"
+            + "      </xsl:for-each>\n"
+            + "    </table>\n"
+            + "  </xsl:template>\n"
+            + "</xsl:stylesheet>\n";
+    }
+
+    /**
+     * XML header with schema.
+     * @param element document element
+     * @param schema schema location
+     * @return opening of the document
+     */
+    private static String header(final String element, final String schema) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<" + element
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:noNamespaceSchemaLocation=\"" + schema + "\">\n";
+    }
+
+    /**
+     * Filler text.
+     * @param words words
+     * @return text
+     */
+    private String text(final int words) {
+        final String[] vocabulary = {"the", "old", "tower", "dragon", "gold", "north", "river", "king", "secret", "night", "sword", "map"};
+        final StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            ret.append(i == 0 ? "" : " ").append(vocabulary[random.nextInt(vocabulary.length)]);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Write a file, creating its directory.
+     * @param absPath file
+     * @param content content
+     * @throws IOException on error
+     */
+    private static void store(final Path absPath, final String content) throws IOException {
+        Files.createDirectories(absPath.getParent());
+        Files.write(absPath, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
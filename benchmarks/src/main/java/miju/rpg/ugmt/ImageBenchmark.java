@@ -0,0 +1,87 @@
+package miju.rpg.ugmt;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Image scaling and PNG encoding of a synthetic map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=benchmark-log4j.properties")
+public class ImageBenchmark {
+    /** Side of the source image. */
+    @Param("1024")
+    private int size;
+
+    /** Source. */
+    private BufferedImage img;
+
+    /**
+     * Paint the source.
+     */
+    @Setup
+    public void setUp() {
+        img = Campaign.paint(size);
+    }
+
+    /**
+     * Scale to a thumbnail.
+     * @return thumbnail
+     */
+    @Benchmark
+    public BufferedImage getScaledInstance() {
+        return GraphicsUtilities.getScaledInstance(img, 256, 256);
+    }
+
+    /**
+     * Encode with the default level.
+     * @return PNG
+     * @throws IOException on error
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return ImageEncoder.encode(img, "png");
+    }
+
+    /**
+     * Encode for transient images.
+     * @return PNG
+     * @throws IOException on error
+     */
+    @Benchmark
+    public byte[] encodeFast() throws IOException {
+        return ImageEncoder.encodeFast(img, "png");
+    }
+
+    /**
+     * Encode as before, for comparison.
+     * @return PNG
+     * @throws IOException on error
+     */
+    @Benchmark
+    public byte[] imageIo() throws IOException {
+        final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", ret);
+        return ret.toByteArray();
+    }
+}
@@ -0,0 +1,326 @@
+package miju.rpg.ugmt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for a server running on a {@link Campaign} root. Players
+ * on the player port hold a tactics web-socket open and fetch static files,
+ * map tiles, character sheets, tagged views and the standard view in a
+ * closed loop; the GM moves tokens on the GM port at a fixed rate. Reported
+ * are throughput and latency percentiles per endpoint and the fan-out latency
+ * from a move request to the push arriving at each player, which includes the
+ * wait for the next token tick.
+ * <p>
+ * Settings: <b>LOAD_HOST</b> (localhost), <b>LOAD_PLAYERS</b> (8),
+ * <b>LOAD_SECONDS</b> (30), <b>LOAD_THINK_MS</b> pause between requests of a
+ * player (0), <b>LOAD_MOVES_HZ</b> token moves per second (10) and
+ * <b>LOAD_CHARS</b> characters in the campaign (200).
+ */
+public final class LoadTest {
+    /** Player port. */
+    private static final int PLAYER_PORT = 8080;
+
+    /** GM port. */
+    private static final int GM_PORT = 8888;
+
+    /** Tokens the GM moves around. */
+    private static final int TOKENS = 16;
+
+    /** Tiles per map side at scale 1. */
+    private static final int TILES = Campaign.MAP_SIDE / 256;
+
+    /** Server. */
+    private final String host = System.getProperty("LOAD_HOST", "localhost");
+
+    /** Simulated players. */
+    private final int players = Integer.getInteger("LOAD_PLAYERS", 8);
+
+    /** Duration of the measurement. */
+    private final int seconds = Integer.getInteger("LOAD_SECONDS", 30);
+
+    /** Pause between the requests of a player. */
+    private final int thinkMillis = Integer.getInteger("LOAD_THINK_MS", 0);
+
+    /** Token moves per second. */
+    private final int movesHz = Integer.getInteger("LOAD_MOVES_HZ", 10);
+
+    /** Characters in the campaign. */
+    private final int chars = Integer.getInteger("LOAD_CHARS", 200);
+
+    /** Latencies by endpoint. */
+    private final Map<String, Recorder> endpoints = new ConcurrentHashMap<>();
+
+    /** Latencies from move to push. */
+    private final Recorder fanOut = new Recorder();
+
+    /** Send time of the moves by pushed position. */
+    private final Map<String, Long> moves = new ConcurrentHashMap<>();
+
+    /** Measuring. */
+    private volatile boolean running = true;
+
+    /**
+     * Run the load test.
+     * @param args unused
+     * @throws Exception on error
+     */
+    public static void main(final String[] args) throws Exception {
+        new LoadTest().run();
+        System.exit(0);
+    }
+
+    /**
+     * Connect the players, generate load and report.
+     * @throws Exception on error
+     */
+    private void run() throws Exception {
+        // Pre-slice the map, tiles are then served from the cache
+        fetch(GM_PORT, "/ugmt.tactics?set=" + Campaign.MAP, null);
+
+        final HttpClient client = HttpClient.newHttpClient();
+        final List<WebSocket> sockets = new ArrayList<>();
+        for (int i = 0; i < players; i++) {
+            sockets.add(client.newWebSocketBuilder()
+                    .buildAsync(URI.create("ws://" + host + ":" + PLAYER_PORT + "/socket/tactics"), new PushListener()).join());
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(players + 1);
+        final long start = System.nanoTime();
+        for (int i = 0; i < players; i++) {
+            final int player = i;
+            pool.execute(() -> play(player));
+        }
+        pool.execute(this::moveTokens);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Late pushes
+        Thread.sleep(1000);
+        for (WebSocket socket : sockets) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+        }
+        report(elapsed);
+    }
+
+    /**
+     * Request loop of a player.
+     * @param player player number, seeds the choice of requests
+     */
+    private void play(final int player) {
+        final Random random = new Random(player);
+        while (running) {
+            final int pick = random.nextInt(100);
+            if (pick < 30) {
+                fetch(PLAYER_PORT, "/" + Campaign.STATIC[random.nextInt(Campaign.STATIC.length)], "static");
+            }
+            else if (pick < 70) {
+                fetch(PLAYER_PORT, "/ugmt.tactics?id=" + Campaign.MAP + "&x=" + 256 * random.nextInt(TILES)
+                        + "&y=" + 256 * random.nextInt(TILES) + "&scale=1.0", "tile");
+            }
+            else if (pick < 80) {
+                fetch(PLAYER_PORT, "/ugmt.chars?id=c" + random.nextInt(chars) + "&template=" + Campaign.SHEET, "sheet");
+            }
+            else if (pick < 95) {
+                fetch(PLAYER_PORT, "/ugmt.notes?tag=note&key=" + Campaign.LORE + ",party" + random.nextInt(Campaign.PARTIES)
+                        + "&tmpl=" + Campaign.TAGGED_XSL, "tagged");
+            }
+            else {
+                fetch(PLAYER_PORT, "/ugmt.notes?view=" + Campaign.VIEW, "view");
+            }
+            pause(thinkMillis);
+        }
+    }
+
+    /**
+     * Move loop of the GM. Each move goes to a new position, so its push can
+     * be told apart.
+     */
+    private void moveTokens() {
+        final long period = TimeUnit.SECONDS.toNanos(1) / movesHz;
+        long next = System.nanoTime();
+        for (int seq = 0; running; seq++) {
+            final String token = "tok" + seq % TOKENS;
+            moves.put(token + "@" + seq + "_0", System.nanoTime());
+            fetch(GM_PORT, "/ugmt.tactics?id=" + Campaign.MAP + "&move=" + token + "," + seq + ",0", "move");
+            next += period;
+            pause(TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime()));
+        }
+    }
+
+    /**
+     * Fetch a resource and read it completely.
+     * @param port port
+     * @param path path and query
+     * @param endpoint endpoint to record the latency for or null
+     */
+    private void fetch(final int port, final String path, final String endpoint) {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final HttpURLConnection conn = (HttpURLConnection) new URL("http", host, port, path).openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            final int code = conn.getResponseCode();
+            try (InputStream is = code < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                if (is != null) {
+                    is.readAllBytes();
+                }
+            }
+            ok = code < 400;
+        }
+        catch (final IOException e) {
+            // Counted as error
+        }
+        if (endpoint != null) {
+            endpoints.computeIfAbsent(endpoint, k -> new Recorder()).record(System.nanoTime() - start, ok);
+        }
+    }
+
+    /**
+     * Print the results.
+     * @param elapsed measured seconds
+     */
+    private void report(final double elapsed) {
+        System.out.printf("%d players, %.1f s%n", players, elapsed);
+        System.out.printf("%-10s %8s %7s %9s %9s %9s %9s%n", "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms");
+        long total = 0;
+        for (Map.Entry<String, Recorder> entry : new TreeMap<>(endpoints).entrySet()) {
+            final Recorder recorder = entry.getValue();
+            total += recorder.count() + recorder.errors.get();
+            print(entry.getKey(), recorder, elapsed);
+        }
+        System.out.printf("%-10s %8d %7s %9.1f%n", "total", total, "", total / elapsed);
+        final long expected = (long) endpoints.getOrDefault("move", new Recorder()).count() * players;
+        System.out.printf("push fan-out: %d of %d delivered, p50 %.2f ms, p99 %.2f ms, p999 %.2f ms%n",
+                fanOut.count(), expected, fanOut.percentile(.5), fanOut.percentile(.99), fanOut.percentile(.999));
+    }
+
+    /**
+     * Print a line of the results.
+     * @param endpoint endpoint
+     * @param recorder latencies
+     * @param elapsed measured seconds
+     */
+    private static void print(final String endpoint, final Recorder recorder, final double elapsed) {
+        final long requests = recorder.count() + recorder.errors.get();
+        System.out.printf("%-10s %8d %7d %9.1f %9.2f %9.2f %9.2f%n", endpoint, requests, recorder.errors.get(),
+                requests / elapsed, recorder.percentile(.5), recorder.percentile(.99), recorder.percentile(.999));
+    }
+
+    /**
+     * Sleep, ignoring interrupts.
+     * @param millis time, nothing if not positive
+     */
+    private static void pause(final long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Receives the pushes of a player and matches them to the moves.
+     */
+    private final class PushListener implements WebSocket.Listener {
+        /** Message so far. */
+        private final StringBuilder message = new StringBuilder();
+
+        @Override
+        public CompletionStage<?> onText(final WebSocket webSocket, final CharSequence data, final boolean last) {
+            message.append(data);
+            if (last) {
+                final long now = System.nanoTime();
+                final String text = message.toString();
+                message.setLength(0);
+                final int idx = text.indexOf(":tokens=");
+                if (idx > 0) {
+                    for (String position : text.substring(idx + ":tokens=".length()).split(",")) {
+                        final Long sent = moves.get(position);
+                        if (sent != null) {
+                            fanOut.record(now - sent, true);
+                        }
+                    }
+                }
+            }
+            webSocket.request(1);
+            return null;
+        }
+    }
+
+    /**
+     * Latencies of one kind.
+     */
+    private static final class Recorder {
+        /** Failed requests. */
+        private final AtomicLong errors = new AtomicLong();
+
+        /** Latencies in nanoseconds. */
+        private long[] nanos = new long[1024];
+
+        /** Recorded latencies. */
+        private int size;
+
+        /**
+         * Record a latency.
+         * @param latency nanoseconds
+         * @param ok successful
+         */
+        synchronized void record(final long latency, final boolean ok) {
+            if (!ok) {
+                errors.incrementAndGet();
+                return;
+            }
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = latency;
+        }
+
+        /**
+         * Getter.
+         * @return recorded latencies
+         */
+        synchronized int count() {
+            return size;
+        }
+
+        /**
+         * Get a percentile.
+         * @param p fraction
+         * @return latency in milliseconds, NaN if nothing was recorded
+         */
+        synchronized double percentile(final double p) {
+            if (size == 0) {
+                return Double.NaN;
+            }
+            final long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) Math.ceil(p * size) - 1)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package miju.rpg.ugmt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Number parsing of rule results and attribute values. The inputs mix the
+ * forms found in character data: signed, percent, trailing <em>.0</em>,
+ * decimal comma and bracketed modifiers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=benchmark-log4j.properties")
+public class UtilsBenchmark {
+    /** Integer inputs. */
+    private final String[] ints = {"12", "+3", "-2", "", "15%", "4.0", "+10.0", "7"};
+
+    /** Double inputs. */
+    private final String[] doubles = {"1.5", "+0.25", "2,75", "", "12%", "-3", "[+2 magic]", "0.1"};
+
+    /**
+     * Parse integers.
+     * @param bh sink
+     */
+    @Benchmark
+    public void parse(final Blackhole bh) {
+        for (String s : ints) {
+            bh.consume(Utils.parse(s));
+        }
+    }
+
+    /**
+     * Parse doubles.
+     * @param bh sink
+     */
+    @Benchmark
+    public void parseDbl(final Blackhole bh) {
+        for (String s : doubles) {
+            bh.consume(Utils.parseDbl(s));
+        }
+    }
+}
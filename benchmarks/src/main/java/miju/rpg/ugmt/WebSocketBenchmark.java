@@ -0,0 +1,83 @@
+package miju.rpg.ugmt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Push path: framing a token delta, plain and compressed with and without
+ * context takeover.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=benchmark-log4j.properties")
+public class WebSocketBenchmark {
+    /** Typical push. */
+    private final byte[] payload = "id=t1:tokens=goblin-1@1200_830,goblin-2@1232_830,hero-7@988_1024,wolf-3@-"
+            .getBytes(StandardCharsets.UTF_8);
+
+    /** Compression keeping the context. */
+    private PerMessageDeflate takeover;
+
+    /** Compression resetting per message. */
+    private PerMessageDeflate noTakeover;
+
+    /**
+     * Negotiate.
+     */
+    @Setup
+    public void setUp() {
+        takeover = PerMessageDeflate.negotiate("tactics", PerMessageDeflate.NAME);
+        noTakeover = PerMessageDeflate.negotiate("tactics", PerMessageDeflate.NAME + "; server_no_context_takeover");
+    }
+
+    /**
+     * Free the deflaters.
+     */
+    @TearDown
+    public void tearDown() {
+        takeover.end();
+        noTakeover.end();
+    }
+
+    /**
+     * Plain frame.
+     * @return frame
+     */
+    @Benchmark
+    public byte[] frame() {
+        return WebSocket.frame(0x1, payload);
+    }
+
+    /**
+     * Compressed frame, context kept.
+     * @return frame
+     */
+    @Benchmark
+    public byte[] frameDeflateTakeover() {
+        return WebSocket.frame(0x41, takeover.compress(payload));
+    }
+
+    /**
+     * Compressed frame, context reset.
+     * @return frame
+     */
+    @Benchmark
+    public byte[] frameDeflateNoTakeover() {
+        return WebSocket.frame(0x41, noTakeover.compress(payload));
+    }
+}
@@ -0,0 +1,94 @@
+package miju.rpg.ugmt;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Data document: loading, XSL views and the tag selection behind tagged
+ * views.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=benchmark-log4j.properties")
+public class XmlProviderBenchmark {
+    /** Campaign size. */
+    @Param("200")
+    private int chars;
+
+    /** Data file of the campaign. */
+    private Path absDataFile;
+
+    /** Data. */
+    private Data data;
+
+    /**
+     * Create the campaign and load it.
+     * @throws Exception on error
+     */
+    @Setup
+    public void setUp() throws Exception {
+        absDataFile = Campaign.get(chars).resolve("data/campaign.xml");
+        data = new Data();
+    }
+
+    /**
+     * Parse and merge the data file.
+     * @return data
+     * @throws Exception on error
+     */
+    @Benchmark
+    public Document load() throws Exception {
+        data.load(absDataFile);
+        return data.getRoot();
+    }
+
+    /**
+     * Standard view.
+     * @return view
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String transform() throws Exception {
+        return AbstractXmlProvider.transform(data.getRoot(), Paths.get(Campaign.VIEW, "index.xsl"));
+    }
+
+    /**
+     * Select notes by tag chain.
+     * @return selection
+     * @throws Exception on error
+     */
+    @Benchmark
+    public Node copyNodesByPredicate() throws Exception {
+        return data.copyNodesByTagsAndKey("note", Campaign.LORE + ",party3", false);
+    }
+
+    /**
+     * Tagged view as served: selection, tags and transformation.
+     * @return view
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String taggedView() throws Exception {
+        final Node elemRoot = data.copyNodesByTagsAndKey("note", Campaign.LORE + ",party3", false);
+        final Node tagRoot = data.createTagsByKey(Campaign.LORE, false, elemRoot.getChildNodes());
+        return data.transformAllDataWithForeignNodes(Paths.get(".", Campaign.TAGGED_XSL.split("/")), elemRoot, tagRoot);
+    }
+}
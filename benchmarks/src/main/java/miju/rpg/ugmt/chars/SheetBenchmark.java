@@ -0,0 +1,90 @@
+package miju.rpg.ugmt.chars;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import miju.rpg.ugmt.Campaign;
+import miju.rpg.ugmt.Data;
+
+/**
+ * Character sheets: rule evaluation through the XPath provider and the full
+ * template transformation. A proxy is created per call, as a sheet request
+ * does, so its caches start empty.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=benchmark-log4j.properties")
+public class SheetBenchmark {
+    /** Characters cycled through. */
+    private static final int CYCLE = 16;
+
+    /** Campaign size. */
+    @Param("200")
+    private int chars;
+
+    /** Characters. */
+    private final Element[] charNodes = new Element[CYCLE];
+
+    /** Sheet template. */
+    private String template;
+
+    /** Transformer. */
+    private final SimpleSheetTransformer trafo = new SimpleSheetTransformer();
+
+    /** Next character. */
+    private int next;
+
+    /**
+     * Create the campaign and load it.
+     * @throws Exception on error
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final Path absRoot = Campaign.get(chars);
+        final Data data = new Data();
+        for (int i = 0; i < CYCLE; i++) {
+            charNodes[i] = data.getElementById("c" + i);
+        }
+        template = new String(Files.readAllBytes(absRoot.resolve("chars").resolve(Campaign.RULES).resolve(Campaign.SHEET)),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Evaluate a calculated attribute, which nests function calls, further
+     * attributes and a table lookup.
+     * @return value
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String evaluateRule() throws Exception {
+        return CharProxy.getCharacterProxy(charNodes[next++ % CYCLE]).calcAttribute("Attack");
+    }
+
+    /**
+     * Transform the sheet template.
+     * @return sheet
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String transform() throws Exception {
+        return trafo.transform(CharProxy.getCharacterProxy(charNodes[next++ % CYCLE]), template);
+    }
+}
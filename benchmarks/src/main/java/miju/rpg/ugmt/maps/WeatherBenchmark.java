@@ -0,0 +1,63 @@
+package miju.rpg.ugmt.maps;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Weather tiles. A cold tile generates its height field, a warm one only
+ * looks it up and paints.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=benchmark-log4j.properties")
+public class WeatherBenchmark {
+    /** Zoom of the tiles, as served by the maps plugin. */
+    private static final int ZOOM = 6;
+
+    /** Fresh height field per call. */
+    private Weather cold;
+
+    /** Height field kept. */
+    private final Weather warm = new Weather(4);
+
+    /**
+     * New height field.
+     */
+    @Setup(Level.Invocation)
+    public void setUp() {
+        cold = new Weather(4);
+    }
+
+    /**
+     * Tile of an empty height field.
+     * @return tile
+     */
+    @Benchmark
+    public BufferedImage getImageCold() {
+        return cold.getImage(ZOOM, 17, 23);
+    }
+
+    /**
+     * Tile of a known height field.
+     * @return tile
+     */
+    @Benchmark
+    public BufferedImage getImageWarm() {
+        return warm.getImage(ZOOM, 17, 23);
+    }
+}
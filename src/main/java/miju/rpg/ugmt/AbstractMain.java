@@ -4,6 +4,8 @@ import static miju.rpg.ugmt.XmlNames.Attributes.ID;
 import static miju.rpg.ugmt.XmlNames.Attributes.PERMIT;
 
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.regex.Pattern;
 
@@ -13,6 +15,7 @@ import org.w3c.dom.Node;
 /**
  * Base class for programmatic extensions of various plugins.
  */
+@SuppressWarnings("try") // spans, see Trace
 public abstract class AbstractMain {
     /** common data access. */
     private Data data;
@@ -43,6 +46,20 @@ public abstract class AbstractMain {
         return "application/xml; charset=utf-8";
     }
 
+    /**
+     * Cache policy of the content, by default that of its mime type.
+     * @param args parameter to look for
+     * @return Cache-Control value
+     * @throws UnsupportedEncodingException parameter can't be decoded
+     */
+    public String getCacheControl(final HttpQueryParams args) throws UnsupportedEncodingException {
+        final MimeType type = MimeType.forContentType(getContentType(args));
+        if (type == null) {
+            return MimeType.REVALIDATE;
+        }
+        return type.getCacheControl();
+    }
+
     /**
      * Get the <b>plugin-id</b>, which is the last part before Main.
      * @return plugin id
@@ -52,6 +69,25 @@ public abstract class AbstractMain {
         return parts[parts.length - 1];
     }
 
+    /**
+     * Handle a message a client sent over its web-socket. By default the
+     * message is taken as query string, e.g. <em>id=x&amp;edit=true&amp;key=k&amp;val=v</em>,
+     * and handled like the HTTP query; non-empty text results are sent back
+     * to the client.
+     * @param socket client's socket
+     * @param message text message
+     * @param gm GM's socket?
+     * @throws Exception on error
+     */
+    public void onMessage(final WebSocket socket, final String message, final boolean gm) throws Exception {
+        final String query = URLDecoder.decode(message, StandardCharsets.UTF_8.toString());
+        final HttpQueryParams args = new HttpQueryParams((getPluginId() + "&" + query).split("&|="));
+        final Object ret = getContent(args, gm);
+        if (ret instanceof String && !((String) ret).isEmpty()) {
+            socket.send((String) ret);
+        }
+    }
+
     /**
      * Main content method.
      * @param args parameter to parse
@@ -71,49 +107,58 @@ public abstract class AbstractMain {
 
         // 1. Change permissions
         if (edit != null && gm) {
-            final Element elem = XmlStreamsUtil.getElementByAttrEqVal(data.getRoot(), ID, edit);
-            edit(elem, key, value);
+            final String push;
+            synchronized (data) {
+                final Element elem = XmlStreamsUtil.getElementByAttrEqVal(data.getRoot(), ID, edit);
+                push = edit(elem, key, value);
+            }
+            // Pushing waits for the clients, not under the lock
+            if (push != null) {
+                HttpServer.push(getPluginId(), push);
+            }
             return "";
         }
 
         // 2. Save changes
         if (save != null && gm) {
-            data.save(null);
+            data.save();
         }
 
         // 3. Standard view
         if (view != null) {
             final String relFullPath = view + "/index.xsl";
-            return data.transformAllDataWithForeignNodes(Paths.get(".", relFullPath.split("/")));
+            try (Trace.Span span = Trace.span("view")) {
+                return data.transformAllDataWithForeignNodes(Paths.get(".", relFullPath.split("/")));
+            }
         }
 
         // 4. Tagged elements only
         if (tag != null && tmpl != null) {
-            return getTaggedView(tag, key, tmpl, gm);
+            try (Trace.Span span = Trace.span("tagged")) {
+                return getTaggedView(tag, key, tmpl, gm);
+            }
         }
 
         return "";
     }
 
     /**
-     * Edit specifics.
+     * Edit specifics. Call under the lock of the data.
      * @param elem element to edit
      * @param key key that is being changed
      * @param value new value of the key
+     * @return message to push to the clients or null
      * @throws Exception on error
      */
-    private void edit(final Element elem, final String key, final String value) throws Exception {
+    private String edit(final Element elem, final String key, final String value) throws Exception {
         switch (key) {
         case PERMIT:
         case "select":
-            elem.setAttribute(key, value);
-            HttpServer.push(getPluginId(),
-                    "id=" + elem.getAttribute(ID) + ":" + key + "=" + value
-                            + ":name=" + elem.getAttribute("name"));
-            data.save(elem);
-            break;
+            data.edit(elem, key, value);
+            return "id=" + elem.getAttribute(ID) + ":" + key + "=" + value
+                    + ":name=" + elem.getAttribute("name");
         default:
-            break;
+            return null;
         }
     }
 
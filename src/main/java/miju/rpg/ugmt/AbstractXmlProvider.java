@@ -18,8 +18,6 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -43,8 +41,12 @@ import org.xml.sax.SAXException;
 
 /**
  * XML method container and reader of XML files. Used by rules readers and data
- * file readers.
+ * file readers. The root is read and changed under the lock of the provider
+ * only: Xerces updates caches of its nodes even when they are only read, so
+ * readers exclude each other as well as edits. Elements used after the lock
+ * is released are copied.
  */
+@SuppressWarnings("try") // spans, see Trace
 public abstract class AbstractXmlProvider implements XmlStreamsUtil {
     /** root dir. */
     public static final Path ROOT_ABS_PATH;
@@ -52,12 +54,15 @@ public abstract class AbstractXmlProvider implements XmlStreamsUtil {
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractXmlProvider.class);
 
-    /** Document builder. */
-    private static DocumentBuilder docBuilder;
-
     /** XML transforming. */
     private static final TransformerFactory TRANS_FACTORY = TransformerFactory.newInstance();
 
+    /** Transform time. */
+    private static final Histogram XSLT_TIME = Metrics.histogram(Metrics.XSLT, "XSLT transform time, compiling included.");
+
+    /** Data query time. */
+    private static final Histogram XPATH_TIME = Metrics.histogram(Metrics.XPATH, "XPath evaluation time.", "source", "data");
+
     /** Data Document. */
     private Document root;
 
@@ -75,19 +80,6 @@ public abstract class AbstractXmlProvider implements XmlStreamsUtil {
      * @throws ParserConfigurationException on error
      */
     public AbstractXmlProvider() throws ParserConfigurationException {
-        synchronized (AbstractXmlProvider.class) {
-            if (docBuilder == null) {
-                final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                dbf.setNamespaceAware(true);
-                dbf.setValidating(true);
-                dbf.setIgnoringElementContentWhitespace(true);
-                dbf.setAttribute(
-                        "http://java.sun.com/xml/jaxp/properties/schemaLanguage",
-                        "http://www.w3.org/2001/XMLSchema");
-                docBuilder = dbf.newDocumentBuilder();
-                docBuilder.setErrorHandler(new XmlErrorHandler());
-            }
-        }
     }
 
     /**
@@ -107,7 +99,12 @@ public abstract class AbstractXmlProvider implements XmlStreamsUtil {
      * @return XML document
      */
     public static Document parse(final Path absPath) throws SAXException, IOException {
-        return docBuilder.parse(absPath.toFile());
+        try {
+            return XmlParsers.builder(XmlValidation.factoryForParse(absPath)).parse(absPath.toFile());
+        }
+        catch (final ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
     }
 
     /**
@@ -115,7 +112,7 @@ public abstract class AbstractXmlProvider implements XmlStreamsUtil {
      * @return new XML document
      */
     protected static Document newDocument() {
-        return docBuilder.newDocument();
+        return XmlParsers.newDocument();
     }
 
     /**
@@ -128,9 +125,16 @@ public abstract class AbstractXmlProvider implements XmlStreamsUtil {
     protected static String transform(final Node node, final Path relPath) throws TransformerException {
         final Path absPath = ROOT_ABS_PATH.resolve(relPath);
         final StringWriter result = new StringWriter();
-        final Transformer transformer = TRANS_FACTORY.newTemplates(new StreamSource(absPath.toFile())).newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, XmlNames.YES);
-        transformer.transform(new DOMSource(node), new StreamResult(result));
+        final long start = System.nanoTime();
+        try (Trace.Span span = Trace.span("xslt")) {
+            final Transformer transformer;
+            try (Trace.Span compile = Trace.span("compile")) {
+                transformer = TRANS_FACTORY.newTemplates(new StreamSource(absPath.toFile())).newTransformer();
+            }
+            transformer.setOutputProperty(OutputKeys.INDENT, XmlNames.YES);
+            transformer.transform(new DOMSource(node), new StreamResult(result));
+        }
+        XSLT_TIME.recordSince(start);
         // The last is a workaround
         return result.toString().replaceAll("xmlns=\"\"", "");
     }
@@ -152,9 +156,32 @@ public abstract class AbstractXmlProvider implements XmlStreamsUtil {
         return getRoot().getElementById(name);
     }
 
+    /**
+     * Get a copy of an element, to be read without the lock.
+     * @param name id too look for
+     * @return copy of the element with that id in a document of its own or null
+     */
+    public synchronized Element copyElementById(final String name) {
+        return copy(getRoot().getElementById(name));
+    }
+
+    /**
+     * Copy an element of the root, to be read without the lock.
+     * @param elem element or null
+     * @return copy in a document of its own or null
+     */
+    public synchronized Element copy(final Element elem) {
+        if (elem == null) {
+            return null;
+        }
+        final Document newDoc = newDocument();
+        newDoc.appendChild(newDoc.importNode(elem, true));
+        return newDoc.getDocumentElement();
+    }
+
     /**
      * Utility.
-     * @return data root
+     * @return data root, to be read under the lock of the provider
      */
     public synchronized Document getRoot() {
         return root;
@@ -259,7 +286,12 @@ public abstract class AbstractXmlProvider implements XmlStreamsUtil {
 
         // Evaluate xpath
         final XPathExpression xpathExpression = XPathFactory.newInstance().newXPath().compile(xpath);
-        final NodeList list = (NodeList) xpathExpression.evaluate(getRoot(), XPathConstants.NODESET);
+        final long start = System.nanoTime();
+        final NodeList list;
+        try (Trace.Span span = Trace.span("xpath")) {
+            list = (NodeList) xpathExpression.evaluate(getRoot(), XPathConstants.NODESET);
+        }
+        XPATH_TIME.recordSince(start);
         LOGGER.debug("list.length={}", list.getLength());
 
         // Check predicate
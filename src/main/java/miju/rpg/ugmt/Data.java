@@ -10,10 +10,11 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,8 +34,14 @@ public class Data extends AbstractXmlProvider {
     /** Helper constant string. */
     private static final Path DATA_ABS_PATH = ROOT_ABS_PATH.resolve("data");
 
-    /** File to save state in. */
-    private static final Path STATE_ABS_PATH = DATA_ABS_PATH.resolve("state.xml");
+    /** Snapshot of the parsed data files. */
+    private static final Path SNAPSHOT_ABS_PATH = ROOT_ABS_PATH.resolve("cache").resolve("data.bin");
+
+    /** Load files streaming rather than as document. */
+    private static final boolean STREAMING = "stream".equals(System.getProperty("DATA_LOADER", "dom"));
+
+    /** Journal of the edits. */
+    private final Journal journal;
 
     /**
      * Constructor.
@@ -44,6 +51,7 @@ public class Data extends AbstractXmlProvider {
      */
     public Data() throws ParserConfigurationException, IOException, SAXException {
         super();
+        journal = new Journal(DATA_ABS_PATH.resolve("journal"));
         load(getDataFiles(DATA_ABS_PATH));
         LOGGER.warn("Ready...");
         Monitor.monitor(this, DATA_ABS_PATH);
@@ -78,21 +86,23 @@ public class Data extends AbstractXmlProvider {
     }
 
     /**
-     * Put the element to state file.
-     * @param elem element to save
-     * @throws TransformerException on error
+     * Set an attribute of an element and journal the edit.
+     * @param elem element of the current root, with an id
+     * @param key attribute
+     * @param value new value
+     * @throws IOException on error
      */
-    void save(final Element elem) throws TransformerException {
-        final Document newDoc = newDocument();
-        final Element newRoot = newDoc.createElement(DATA);
-        newRoot.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        newRoot.setAttribute("xsi:noNamespaceSchemaLocation", "./ugmt.xsd");
-        newDoc.appendChild(newRoot);
-        if (elem != null) {
-            final Node newElem = pathToRoot(newDoc, elem);
-            newRoot.appendChild(newElem.getFirstChild());
-        }
-        transform(newDoc, STATE_ABS_PATH);
+    synchronized void edit(final Element elem, final String key, final String value) throws IOException {
+        elem.setAttribute(key, value);
+        journal.append(elem.getAttribute(ID), key, value);
+    }
+
+    /**
+     * Force the journaled edits to disk.
+     * @throws IOException on error
+     */
+    void save() throws IOException {
+        journal.sync();
     }
 
     @Override
@@ -101,13 +111,55 @@ public class Data extends AbstractXmlProvider {
     }
 
     /**
-     * Load files.
+     * Load all data files. Files unchanged since the last load are rebuilt
+     * from the snapshot; if any is not, the snapshot is rewritten.
      * @param list file list
      * @throws IOException on error
      * @throws SAXException on error
      */
-    private void load(final DirectoryStream<Path> list) throws SAXException, IOException {
-        load((Iterable<Path>) list);
+    private synchronized void load(final DirectoryStream<Path> list) throws SAXException, IOException {
+        final long start = System.nanoTime();
+        final DataSnapshot snapshot = new DataSnapshot(SNAPSHOT_ABS_PATH, DATA_ABS_PATH);
+        // Stamped before parsing, so a file changed meanwhile is parsed again next time
+        final Map<Path, String> stamps = new LinkedHashMap<>();
+        boolean stale = false;
+        for (Path absPath : list) {
+            final String stamp = DataSnapshot.stamp(absPath);
+            stamps.put(absPath, stamp);
+            stale |= !snapshot.isCurrent(absPath, stamp);
+        }
+        stale |= snapshot.size() != stamps.size();
+        final DataSnapshot.Writer writer = DataSnapshot.ENABLED && stale ? new DataSnapshot.Writer(DATA_ABS_PATH) : null;
+
+        final Document tmpData = newDocument();
+        tmpData.appendChild(tmpData.createElement(DATA));
+        int parsed = 0;
+        for (Map.Entry<Path, String> entry : stamps.entrySet()) {
+            final Path absPath = entry.getKey();
+            final Document doc = newDocument();
+            if (snapshot.restore(absPath, entry.getValue(), doc)) {
+                if (writer != null) {
+                    writer.add(absPath, entry.getValue(), doc);
+                }
+                parse(tmpData, doc);
+            }
+            else {
+                load(absPath, entry.getValue(), tmpData, writer);
+                parsed++;
+            }
+        }
+        if (writer != null) {
+            try {
+                writer.write(SNAPSHOT_ABS_PATH);
+            }
+            catch (final IOException e) {
+                LOGGER.warn("writing snapshot failed", e);
+            }
+        }
+        journal.replay(tmpData);
+
+        setRoot(tmpData);
+        LOGGER.info("loaded files={} parsed={} ms={}", stamps.size(), parsed, (System.nanoTime() - start) / 1000000);
     }
 
     /**
@@ -121,13 +173,56 @@ public class Data extends AbstractXmlProvider {
         tmpData.appendChild(tmpData.createElement(DATA));
 
         for (Path absPath : iterable) {
-            LOGGER.info("Loading... absPath={}", absPath);
-            parse(tmpData, parse(absPath));
+            load(absPath, null, tmpData, null);
         }
+        journal.replay(tmpData);
 
         setRoot(tmpData);
     }
 
+    /**
+     * Load a file and merge it, with the loader chosen by <b>DATA_LOADER</b>:
+     * <em>dom</em> (default) parses the file into a document of its own,
+     * <em>stream</em> builds its elements right in the merged document.
+     * @param absPath file
+     * @param stamp stamp of the file taken before, for the snapshot
+     * @param toDoc merged document
+     * @param writer snapshot to add the file to or null
+     * @throws IOException on error
+     * @throws SAXException on error
+     */
+    private void load(final Path absPath, final String stamp, final Document toDoc, final DataSnapshot.Writer writer)
+            throws SAXException, IOException {
+        LOGGER.info("Loading... absPath={}", absPath);
+        if (!STREAMING) {
+            final Document fromDoc = parse(absPath);
+            if (writer != null) {
+                writer.add(absPath, stamp, fromDoc);
+            }
+            parse(toDoc, fromDoc);
+            return;
+        }
+        StreamingLoader.load(absPath, toDoc, new StreamingLoader.Listener() {
+            @Override
+            public void root(final Element root) {
+                if (writer != null) {
+                    writer.begin(absPath, stamp, root);
+                }
+            }
+
+            @Override
+            public void child(final Element elem) {
+                if (writer != null) {
+                    writer.add(elem);
+                }
+                merge(toDoc, elem);
+            }
+        });
+        if (writer != null) {
+            writer.end();
+        }
+    }
+
     /**
      * Parse a document and merge it. Observe uniqueness.
      * @param toDoc document into which to add doc
@@ -146,39 +241,28 @@ public class Data extends AbstractXmlProvider {
                 i = i + 1;
                 continue;
             }
-            Element fromElement = (Element) fromNode;
-            final Element toElement = (Element) toDoc.getElementById(fromElement.getAttribute(ID));
-            // This modifies the fromList, but preserves the xml:id
-            fromElement = (Element) toDoc.adoptNode(fromElement);
-            fromElement.setIdAttribute(ID, true);
-            if (toElement == null) {
-                toDoc.getDocumentElement().appendChild(fromElement);
-            }
-            else {
-                toDoc.getDocumentElement().replaceChild(fromElement, toElement);
-            }
-            ret.add(fromElement);
+            ret.add(merge(toDoc, (Element) fromNode));
         }
         return ret;
     }
 
     /**
-     * Create a path to the root of an element.
-     * @param newDoc document to create path in
-     * @param oldElem element to create path for
-     * @return root node of the new path
+     * Merge an element into a document, replacing the one with the same id.
+     * @param toDoc document into which to merge
+     * @param fromElement element to merge, removed from its parent
+     * @return merged element
      */
-    private synchronized Node pathToRoot(final Document newDoc, final Element oldElem) {
-        Node newElem = newDoc.importNode(oldElem, true);
-        Node oldParent = oldElem.getParentNode();
-        while (!oldParent.equals(getRoot())) {
-            // Create new parent clone
-            final Node newParent = newDoc.importNode(oldParent, false);
-            newParent.appendChild(newElem);
-            // Recurse
-            newElem = newParent;
-            oldParent = oldParent.getParentNode();
+    private Element merge(final Document toDoc, final Element fromElement) {
+        final Element toElement = (Element) toDoc.getElementById(fromElement.getAttribute(ID));
+        // This modifies the parent's child list, but preserves the xml:id
+        final Element ret = (Element) toDoc.adoptNode(fromElement);
+        ret.setIdAttribute(ID, true);
+        if (toElement == null) {
+            toDoc.getDocumentElement().appendChild(ret);
         }
-        return newElem;
+        else {
+            toDoc.getDocumentElement().replaceChild(ret, toElement);
+        }
+        return ret;
     }
 }
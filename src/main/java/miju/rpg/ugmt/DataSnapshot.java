@@ -0,0 +1,495 @@
+package miju.rpg.ugmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Binary snapshot of the parsed data files, in <em>cache/data.bin</em>. It
+ * holds the trees of all data files over one table of interned strings, and
+ * the attributes found to be ids by schema validation. At startup the
+ * snapshot is memory-mapped and a data file whose modification time and size
+ * are unchanged is rebuilt from it, without parsing or validating; changed
+ * files are parsed as before. Any change of a schema in <em>data</em>
+ * discards the whole snapshot. Files are kept apart rather than as merged
+ * document, so that merging a changed file yields exactly what a full load
+ * would. Disabled by <b>DATA_SNAPSHOT</b>=false.
+ */
+final class DataSnapshot {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataSnapshot.class);
+
+    /** Enabled. */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("DATA_SNAPSHOT", "true"));
+
+    /** File magic. */
+    private static final int MAGIC = 0x55474d44;
+
+    /** File format version. */
+    private static final int VERSION = 2;
+
+    /** End of the children of an element. */
+    private static final byte END = 0;
+
+    /** Node type of the file. */
+    private static final byte ELEMENT = 1;
+
+    /** Node type of the file. */
+    private static final byte TEXT = 2;
+
+    /** Node type of the file. */
+    private static final byte CDATA = 3;
+
+    /** Node type of the file. */
+    private static final byte COMMENT = 4;
+
+    /** Node type of the file. */
+    private static final byte PI = 5;
+
+    /** String index of null. */
+    private static final int NULL = -1;
+
+    /** Snapshot contents, null if none or stale. */
+    private final ByteBuffer buffer;
+
+    /** Interned strings. */
+    private final String[] strings;
+
+    /** Tree positions by file name. */
+    private final Map<String, Source> sources = new HashMap<>();
+
+    /**
+     * Open a snapshot.
+     * @param absFile snapshot file
+     * @param absDataDir data directory, for checking the schemas
+     */
+    DataSnapshot(final Path absFile, final Path absDataDir) {
+        ByteBuffer buf = null;
+        String[] str = new String[0];
+        if (ENABLED && Files.exists(absFile)) {
+            try (FileChannel fc = FileChannel.open(absFile, StandardOpenOption.READ)) {
+                final MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                if (mapped.getInt() == MAGIC && mapped.getInt() == VERSION) {
+                    str = new String[mapped.getInt()];
+                    for (int i = 0; i < str.length; i++) {
+                        final byte[] bytes = new byte[mapped.getInt()];
+                        mapped.get(bytes);
+                        str[i] = bytes.length == 0 ? "" : new String(bytes, StandardCharsets.UTF_8).intern();
+                    }
+                    if (readSources(mapped, str, sources).equals(stamps(absDataDir, ".xsd"))) {
+                        buf = mapped;
+                    }
+                    else {
+                        LOGGER.info("schema changed, snapshot discarded");
+                        sources.clear();
+                    }
+                }
+            }
+            catch (final IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+                LOGGER.warn("unreadable snapshot={}", absFile, e);
+                sources.clear();
+            }
+        }
+        buffer = buf;
+        strings = str;
+    }
+
+    /**
+     * Rebuild a data file as parsed, if unchanged since the snapshot.
+     * @param absPath data file
+     * @param stamp stamp of the file, see {@link #stamp}
+     * @param doc empty document to build into
+     * @return whether the file was rebuilt
+     * @throws IOException on error
+     */
+    boolean restore(final Path absPath, final String stamp, final Document doc) throws IOException {
+        if (!isCurrent(absPath, stamp)) {
+            return false;
+        }
+        final ByteBuffer tree = buffer.duplicate();
+        tree.position(sources.get(absPath.getFileName().toString()).position);
+        try {
+            readNode(tree.get(), tree, doc, doc);
+        }
+        catch (final BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot of " + absPath, e);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a data file is unchanged since the snapshot.
+     * @param absPath data file
+     * @param stamp stamp of the file, see {@link #stamp}
+     * @return whether it can be restored
+     */
+    boolean isCurrent(final Path absPath, final String stamp) {
+        final Source source = buffer == null ? null : sources.get(absPath.getFileName().toString());
+        return source != null && source.stamp.equals(stamp);
+    }
+
+    /**
+     * Getter.
+     * @return number of data files in the snapshot
+     */
+    int size() {
+        return sources.size();
+    }
+
+    /**
+     * Read the sources and the schema stamps.
+     * @param buf buffer at the sources
+     * @param str strings
+     * @param ret data files by name
+     * @return schema stamps
+     */
+    private static Map<String, String> readSources(final ByteBuffer buf, final String[] str, final Map<String, Source> ret) {
+        final Map<String, String> schemas = new HashMap<>();
+        for (int i = buf.getInt(); i > 0; i--) {
+            schemas.put(str[buf.getInt()], str[buf.getInt()]);
+        }
+        for (int i = buf.getInt(); i > 0; i--) {
+            final String name = str[buf.getInt()];
+            final String stamp = str[buf.getInt()];
+            ret.put(name, new Source(stamp, buf.getInt()));
+        }
+        return schemas;
+    }
+
+    /**
+     * Read a node and its descendants.
+     * @param type node type
+     * @param buf buffer after the node type
+     * @param doc document
+     * @param parent node to append to
+     */
+    private void readNode(final byte type, final ByteBuffer buf, final Document doc, final Node parent) {
+        switch (type) {
+        case ELEMENT:
+            final Element elem = doc.createElementNS(string(buf), string(buf));
+            for (int i = buf.getInt(); i > 0; i--) {
+                final String ns = string(buf);
+                final String name = string(buf);
+                elem.setAttributeNS(ns, name, string(buf));
+                if (buf.get() != 0) {
+                    elem.setIdAttributeNS(ns, name.substring(name.indexOf(':') + 1), true);
+                }
+            }
+            parent.appendChild(elem);
+            for (byte child = buf.get(); child != END; child = buf.get()) {
+                readNode(child, buf, doc, elem);
+            }
+            break;
+        case TEXT:
+            parent.appendChild(doc.createTextNode(string(buf)));
+            break;
+        case CDATA:
+            parent.appendChild(doc.createCDATASection(string(buf)));
+            break;
+        case COMMENT:
+            parent.appendChild(doc.createComment(string(buf)));
+            break;
+        case PI:
+            parent.appendChild(doc.createProcessingInstruction(string(buf), string(buf)));
+            break;
+        default:
+            throw new IllegalArgumentException("Node type " + type);
+        }
+    }
+
+    /**
+     * Read a string index.
+     * @param buf buffer
+     * @return string or null
+     */
+    private String string(final ByteBuffer buf) {
+        final int i = buf.getInt();
+        return i == NULL ? null : strings[i];
+    }
+
+    /**
+     * Stamp of a file, its modification time and size. Taken before the file
+     * is read, so a change while reading makes the snapshot stale.
+     * @param absPath file
+     * @return stamp
+     * @throws IOException on error
+     */
+    static String stamp(final Path absPath) throws IOException {
+        return Files.getLastModifiedTime(absPath).toMillis() + "/" + Files.size(absPath);
+    }
+
+    /**
+     * Stamps of the files of a directory.
+     * @param absDir directory
+     * @param suffix file name suffix
+     * @return stamps by file name
+     * @throws IOException on error
+     */
+    private static Map<String, String> stamps(final Path absDir, final String suffix) throws IOException {
+        final Map<String, String> ret = new HashMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(absDir, "*" + suffix)) {
+            for (Path absPath : ds) {
+                ret.put(absPath.getFileName().toString(), stamp(absPath));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Position of a data file's tree.
+     */
+    private static final class Source {
+        /** Stamp of the file. */
+        private final String stamp;
+
+        /** Position of the document node. */
+        private final int position;
+
+        /**
+         * Constructor.
+         * @param aStamp stamp of the file
+         * @param aPosition position of the document node
+         */
+        Source(final String aStamp, final int aPosition) {
+            stamp = aStamp;
+            position = aPosition;
+        }
+    }
+
+    /**
+     * Writes a snapshot of parsed data files.
+     */
+    static final class Writer {
+        /** Stamps of the schemas by file name. */
+        private final Map<String, String> schemas;
+
+        /** String indexes. */
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        /** Strings by index. */
+        private final List<String> strings = new ArrayList<>();
+
+        /** File names and stamps, alternating string indexes. */
+        private final List<Integer> files = new ArrayList<>();
+
+        /** Tree positions within {@link #trees}. */
+        private final List<Integer> positions = new ArrayList<>();
+
+        /** Trees. */
+        private final ByteArrayOutputStream trees = new ByteArrayOutputStream();
+
+        /** Output of the trees. */
+        private final DataOutputStream out = new DataOutputStream(trees);
+
+        /** First error while adding or null. */
+        private IOException failure;
+
+        /**
+         * Constructor. Call before the data files are parsed.
+         * @param absDataDir data directory, whose schemas are stamped now
+         * @throws IOException on error
+         */
+        Writer(final Path absDataDir) throws IOException {
+            schemas = stamps(absDataDir, ".xsd");
+        }
+
+        /**
+         * Add a data file. Call before the document is merged away.
+         * @param absPath data file
+         * @param stamp stamp of the file taken before it was parsed
+         * @param doc document as parsed
+         */
+        void add(final Path absPath, final String stamp, final Document doc) {
+            final Element root = doc.getDocumentElement();
+            begin(absPath, stamp, root);
+            final NodeList children = root.getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                if (children.item(i) instanceof Element) {
+                    add((Element) children.item(i));
+                }
+            }
+            end();
+        }
+
+        /**
+         * Begin a data file, which is added element by element. Errors are
+         * kept for {@link #write}.
+         * @param absPath data file
+         * @param stamp stamp of the file taken before it was parsed
+         * @param root root element, its children are ignored
+         */
+        void begin(final Path absPath, final String stamp, final Element root) {
+            try {
+                files.add(index(absPath.getFileName().toString()));
+                files.add(index(stamp));
+                positions.add(out.size());
+                writeElement(root);
+            }
+            catch (final IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Add a top-level element of the data file begun.
+         * @param elem element
+         */
+        void add(final Element elem) {
+            try {
+                writeNode(elem);
+            }
+            catch (final IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * End the data file begun.
+         */
+        void end() {
+            try {
+                out.writeByte(END);
+            }
+            catch (final IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Write the snapshot.
+         * @param absFile snapshot file
+         * @throws IOException on error
+         */
+        void write(final Path absFile) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            final List<Integer> schemaIndexes = new ArrayList<>();
+            for (Map.Entry<String, String> entry : schemas.entrySet()) {
+                schemaIndexes.add(index(entry.getKey()));
+                schemaIndexes.add(index(entry.getValue()));
+            }
+            out.flush();
+
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(trees.size() + 1024 * 1024);
+            final DataOutputStream head = new DataOutputStream(baos);
+            head.writeInt(MAGIC);
+            head.writeInt(VERSION);
+            head.writeInt(strings.size());
+            for (String str : strings) {
+                final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                head.writeInt(bytes.length);
+                head.write(bytes);
+            }
+            head.writeInt(schemaIndexes.size() / 2);
+            for (int i : schemaIndexes) {
+                head.writeInt(i);
+            }
+            head.writeInt(positions.size());
+            final int base = head.size() + 12 * positions.size();
+            for (int i = 0; i < positions.size(); i++) {
+                head.writeInt(files.get(2 * i));
+                head.writeInt(files.get(2 * i + 1));
+                head.writeInt(base + positions.get(i));
+            }
+            trees.writeTo(head);
+            head.flush();
+            Utils.writeAtomically(absFile, baos.toByteArray());
+        }
+
+        /**
+         * Write a node and its descendants.
+         * @param node node
+         * @throws IOException on error
+         */
+        private void writeNode(final Node node) throws IOException {
+            switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement((Element) node);
+                final NodeList children = node.getChildNodes();
+                for (int i = 0; i < children.getLength(); i++) {
+                    writeNode(children.item(i));
+                }
+                out.writeByte(END);
+                break;
+            case Node.TEXT_NODE:
+                out.writeByte(TEXT);
+                out.writeInt(index(node.getNodeValue()));
+                break;
+            case Node.CDATA_SECTION_NODE:
+                out.writeByte(CDATA);
+                out.writeInt(index(node.getNodeValue()));
+                break;
+            case Node.COMMENT_NODE:
+                out.writeByte(COMMENT);
+                out.writeInt(index(node.getNodeValue()));
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                out.writeByte(PI);
+                out.writeInt(index(node.getNodeName()));
+                out.writeInt(index(node.getNodeValue()));
+                break;
+            default:
+                // Entity references are expanded by the parser
+                break;
+            }
+        }
+
+        /**
+         * Write an element without its children.
+         * @param elem element
+         * @throws IOException on error
+         */
+        private void writeElement(final Element elem) throws IOException {
+            out.writeByte(ELEMENT);
+            out.writeInt(index(elem.getNamespaceURI()));
+            out.writeInt(index(elem.getNodeName()));
+            final NamedNodeMap attrs = elem.getAttributes();
+            out.writeInt(attrs.getLength());
+            for (int i = 0; i < attrs.getLength(); i++) {
+                final Attr attr = (Attr) attrs.item(i);
+                out.writeInt(index(attr.getNamespaceURI()));
+                out.writeInt(index(attr.getName()));
+                out.writeInt(index(attr.getValue()));
+                out.writeByte(attr.isId() ? 1 : 0);
+            }
+        }
+
+        /**
+         * Intern a string.
+         * @param str string or null
+         * @return index
+         */
+        private int index(final String str) {
+            if (str == null) {
+                return NULL;
+            }
+            return indexes.computeIfAbsent(str, k -> {
+                strings.add(k);
+                return strings.size() - 1;
+            });
+        }
+    }
+}
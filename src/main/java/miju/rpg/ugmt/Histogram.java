@@ -0,0 +1,125 @@
+package miju.rpg.ugmt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with log-linear buckets, like
+ * HdrHistogram: each power of two is split into 16 buckets, so percentiles are
+ * off by at most 1/16 over the whole range of longs. Recording is a few
+ * arithmetic operations and an atomic increment, without allocation or locks,
+ * and the histogram never needs resizing.
+ */
+public final class Histogram {
+    /** Bits of a value kept exactly within its power of two. */
+    private static final int SUB_BITS = 4;
+
+    /** Buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Values below this are counted exactly. */
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+
+    /** Number of buckets, enough for all positive longs. */
+    private static final int BUCKETS = SUB_BUCKETS * (Long.SIZE - SUB_BITS);
+
+    /** Counts by bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Sum of the values. */
+    private final LongAdder sum = new LongAdder();
+
+    /** Largest value. */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a value.
+     * @param nanos duration, negative values are taken as 0
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Record the time since a start.
+     * @param startNanos start as of {@link System#nanoTime()}
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Getter.
+     * @return number of recorded values
+     */
+    public long count() {
+        long ret = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            ret += counts.get(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Getter.
+     * @return sum of recorded values
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get a percentile. Concurrent recording may or may not be seen.
+     * @param p fraction, e.g. 0.99
+     * @return largest value of the bucket holding the percentile, but at most
+     * the largest value recorded; 0 if nothing was recorded
+     */
+    public long percentile(final double p) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        final long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Bucket of a value.
+     * @param value non-negative value
+     * @return index
+     */
+    static int index(final long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    /**
+     * Largest value of a bucket.
+     * @param index bucket
+     * @return value
+     */
+    static long highest(final int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
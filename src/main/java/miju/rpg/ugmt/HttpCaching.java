@@ -0,0 +1,121 @@
+package miju.rpg.ugmt;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.zip.CRC32;
+
+/**
+ * Validators and conditional request handling for HTTP caching. File
+ * validators are derived from size and modification time, those of generated
+ * content from a checksum of the content.
+ */
+public final class HttpCaching {
+    /** Header field. */
+    public static final String ETAG = "ETag: ";
+
+    /** Header field. */
+    public static final String LAST_MODIFIED = "Last-Modified: ";
+
+    /** Header field. */
+    public static final String CACHE_CONTROL = "Cache-Control: ";
+
+    /** Hide constructor. */
+    private HttpCaching() {
+    }
+
+    /**
+     * Entity tag of a file.
+     * @param size file size
+     * @param lastModified modification time in milliseconds
+     * @return quoted entity tag
+     */
+    public static String etag(final long size, final long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Entity tag of generated content.
+     * @param content content bytes
+     * @return quoted entity tag
+     */
+    public static String etag(final byte[] content) {
+        return etag(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Entity tag of generated content.
+     * @param content content bytes (position and limit are not changed)
+     * @return quoted entity tag
+     */
+    public static String etag(final ByteBuffer content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        return "\"" + Integer.toHexString(content.remaining()) + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    /**
+     * Format a time as HTTP date.
+     * @param millis time in milliseconds
+     * @return RFC 1123 date
+     */
+    public static String httpDate(final long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * Parse a HTTP date.
+     * @param date RFC 1123 date
+     * @return time in milliseconds or -1, if it can't be parsed
+     */
+    public static long parseHttpDate(final String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (final DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check whether one of the tags in a <em>If-None-Match</em> style list
+     * matches. Comparison is weak, i.e. "W/" prefixes are ignored.
+     * @param list comma separated entity tags or "*"
+     * @param etag entity tag to look for
+     * @return match found
+     */
+    public static boolean matches(final String list, final String etag) {
+        final String strong = etag.replaceFirst("^W/", "");
+        for (String candidate : list.split(",")) {
+            final String tag = candidate.trim();
+            if ("*".equals(tag) || tag.replaceFirst("^W/", "").equals(strong)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate the conditional request fields. <em>If-None-Match</em> takes
+     * precedence over <em>If-Modified-Since</em>.
+     * @param headers request header fields
+     * @param etag entity tag of the current content
+     * @param lastModified modification time in milliseconds or -1, if unknown
+     * @return the client's copy is current and 304 may be sent
+     */
+    public static boolean notModified(final HttpHeaders headers, final String etag, final long lastModified) {
+        final String ifNoneMatch = headers.get("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        final String ifModifiedSince = headers.get("If-Modified-Since");
+        if (ifModifiedSince != null && lastModified >= 0) {
+            final long since = parseHttpDate(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+}
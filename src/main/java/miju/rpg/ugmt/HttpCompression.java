@@ -0,0 +1,202 @@
+package miju.rpg.ugmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Negotiated response compression. Generated content is compressed per
+ * request; static files are compressed once into a sidecar in the cache
+ * directory, which is renewed when the file changes. Small responses and
+ * types that are compressed already are sent as they are.
+ */
+public final class HttpCompression {
+    /** Header field. */
+    public static final String CONTENT_ENCODING = "Content-Encoding: ";
+
+    /** Header field. */
+    public static final String VARY = "Vary: Accept-Encoding";
+
+    /** Content coding. */
+    public static final String GZIP = "gzip";
+
+    /** Content coding. */
+    public static final String DEFLATE = "deflate";
+
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpCompression.class);
+
+    /** Sidecar directory. */
+    private static final Path SIDECAR_ABS_PATH = AbstractXmlProvider.ROOT_ABS_PATH.resolve("cache").resolve("compressed");
+
+    /** Hide constructor. */
+    private HttpCompression() {
+    }
+
+    /**
+     * Smallest response worth compressing, property <b>COMPRESS_MIN_SIZE</b>.
+     * @return size in bytes
+     */
+    private static int minSize() {
+        return Integer.getInteger("COMPRESS_MIN_SIZE", 1024);
+    }
+
+    /**
+     * Deflate level for generated content, property <b>COMPRESS_LEVEL</b>.
+     * @return level
+     */
+    private static int level() {
+        return Integer.getInteger("COMPRESS_LEVEL", Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Check whether a content-type is worth compressing.
+     * @param contentType content-type, may carry parameters
+     * @return compressible
+     */
+    public static boolean isCompressible(final String contentType) {
+        final MimeType type = MimeType.forContentType(contentType);
+        if (type != null) {
+            return type.isCompressible();
+        }
+        final String bare = contentType.split(";")[0].trim();
+        return bare.startsWith("text/") || bare.endsWith("xml") || bare.endsWith("json");
+    }
+
+    /**
+     * Choose the content coding from <em>Accept-Encoding</em>.
+     * @param headers request header fields
+     * @param compressible content type is compressible
+     * @param size content size
+     * @return gzip, deflate or null for identity
+     */
+    public static String negotiate(final HttpHeaders headers, final boolean compressible, final long size) {
+        final String accept = headers.get("Accept-Encoding");
+        if (!compressible || accept == null || size < minSize()) {
+            return null;
+        }
+        String best = null;
+        double bestQ = 0;
+        for (String part : accept.split(",")) {
+            final String[] tokens = part.trim().split(";");
+            final String coding = tokens[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < tokens.length; i++) {
+                final String param = tokens[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    }
+                    catch (final NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if ((GZIP.equals(coding) || DEFLATE.equals(coding))
+                    && (q > bestQ || (q == bestQ && GZIP.equals(coding)))) {
+                best = coding;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Derive the entity tag of a compressed representation.
+     * @param etag entity tag of the identity representation
+     * @param encoding content coding
+     * @return entity tag
+     */
+    public static String etag(final String etag, final String encoding) {
+        if (encoding == null) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Compress content.
+     * @param content content to compress
+     * @param encoding gzip or deflate
+     * @return compressed content
+     * @throws IOException on error
+     */
+    public static byte[] compress(final byte[] content, final String encoding) throws IOException {
+        return compress(content, encoding, level());
+    }
+
+    /**
+     * Compress content.
+     * @param content content to compress
+     * @param encoding gzip or deflate
+     * @param level deflate level
+     * @return compressed content
+     * @throws IOException on error
+     */
+    private static byte[] compress(final byte[] content, final String encoding, final int level) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 4 + 64);
+        final Deflater deflater = new Deflater(level, GZIP.equals(encoding));
+        try {
+            final OutputStream dos;
+            if (GZIP.equals(encoding)) {
+                dos = new LevelGzipOutputStream(baos, deflater);
+            }
+            else {
+                dos = new DeflaterOutputStream(baos, deflater);
+            }
+            dos.write(content);
+            dos.close();
+        }
+        finally {
+            deflater.end();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Get the precompressed sidecar of a static file, creating or renewing it
+     * as needed. The sidecar carries the modification time of its source.
+     * @param absPath file to serve
+     * @param encoding gzip or deflate
+     * @return compressed file
+     * @throws IOException on error
+     */
+    public static Path sidecar(final Path absPath, final String encoding) throws IOException {
+        final Path rel = AbstractXmlProvider.ROOT_ABS_PATH.relativize(absPath.toAbsolutePath());
+        final Path absSidecar = SIDECAR_ABS_PATH.resolve(rel.toString() + "." + encoding);
+        final FileTime modified = Files.getLastModifiedTime(absPath);
+        if (!Files.exists(absSidecar) || !Files.getLastModifiedTime(absSidecar).equals(modified)) {
+            LOGGER.info("compressing={} encoding={}", absPath, encoding);
+            Utils.writeAtomically(absSidecar, compress(Files.readAllBytes(absPath), encoding, Deflater.BEST_COMPRESSION));
+            Files.setLastModifiedTime(absSidecar, modified);
+        }
+        return absSidecar;
+    }
+
+    /**
+     * GZIP stream with a given deflater, such that the level can be chosen.
+     */
+    private static final class LevelGzipOutputStream extends GZIPOutputStream {
+        /**
+         * Constructor.
+         * @param os stream to write to
+         * @param deflater deflater to use instead of the default one
+         * @throws IOException on error
+         */
+        private LevelGzipOutputStream(final OutputStream os, final Deflater deflater) throws IOException {
+            super(os);
+            def.end();
+            def = deflater;
+        }
+    }
+}
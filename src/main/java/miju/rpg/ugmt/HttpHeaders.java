@@ -0,0 +1,83 @@
+package miju.rpg.ugmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Utility class to help with the header fields of a HTTP request. Field names
+ * are case-insensitive.
+ */
+public final class HttpHeaders {
+    /** Longest line accepted. */
+    private static final int MAX_LINE = 8192;
+
+    /** Field hash (lower case names). */
+    private final Map<String, String> fields = new HashMap<>();
+
+    /** Hide constructor. */
+    private HttpHeaders() {
+    }
+
+    /**
+     * Read a CRLF (or LF) terminated line. Reading is byte-wise, so nothing
+     * beyond the line is consumed from the stream.
+     * @param is stream to read from
+     * @return line without terminator or null at end of stream
+     * @throws IOException on error
+     */
+    public static String readLine(final InputStream is) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c = is.read();
+        if (c < 0) {
+            return null;
+        }
+        while (c >= 0 && c != '\n') {
+            if (c != '\r' && line.size() < MAX_LINE) {
+                line.write(c);
+            }
+            c = is.read();
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read header fields up to and including the empty line.
+     * @param is stream to read from
+     * @return header fields
+     * @throws IOException on error
+     */
+    public static HttpHeaders read(final InputStream is) throws IOException {
+        final HttpHeaders ret = new HttpHeaders();
+        String line = readLine(is);
+        while (line != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                final String value = line.substring(colon + 1).trim();
+                final String old = ret.fields.get(name);
+                if (old == null) {
+                    ret.fields.put(name, value);
+                }
+                else {
+                    ret.fields.put(name, old + ", " + value);
+                }
+            }
+            line = readLine(is);
+        }
+        return ret;
+    }
+
+    /**
+     * Get a field value. Repeated fields are joined by comma.
+     * @param name field name
+     * @return value or null
+     */
+    public String get(final String name) {
+        return fields.get(name.toLowerCase(Locale.ROOT));
+    }
+}
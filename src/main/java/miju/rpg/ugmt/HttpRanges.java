@@ -0,0 +1,188 @@
+package miju.rpg.ugmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte range requests. Parses <em>Range</em> under the condition of
+ * <em>If-Range</em> into a sorted list of non-overlapping ranges, which are
+ * served as <em>206 Partial Content</em>, one range as it is and several
+ * ranges as <em>multipart/byteranges</em>.
+ */
+public final class HttpRanges {
+    /** Header field. */
+    public static final String ACCEPT_RANGES = "Accept-Ranges: bytes";
+
+    /** Header field. */
+    public static final String CONTENT_RANGE = "Content-Range: bytes ";
+
+    /** Header field. */
+    public static final String CONTENT_LENGTH = "Content-Length: ";
+
+    /** Most ranges served in one response; more are answered with the whole file. */
+    private static final int MAX_RANGES = 16;
+
+    /** Boundary of multipart responses. */
+    private static final String BOUNDARY = "UGMT_BYTERANGES";
+
+    /** Line terminator. */
+    private static final String CRLF = "\r\n";
+
+    /** Hide constructor. */
+    private HttpRanges() {
+    }
+
+    /**
+     * Parse the requested ranges.
+     * @param headers request header fields
+     * @param etag entity tag of the current content
+     * @param lastModified modification time in milliseconds
+     * @param size content size
+     * @return null for the whole content, an empty list, if no range can be
+     *         satisfied, or the ranges as {first, last} pairs
+     */
+    public static List<long[]> parse(final HttpHeaders headers, final String etag, final long lastModified,
+            final long size) {
+        final String range = headers.get("Range");
+        if (range == null || !range.startsWith("bytes=") || !ifRange(headers.get("If-Range"), etag, lastModified)) {
+            return null;
+        }
+        final List<long[]> ranges = new ArrayList<>();
+        for (String spec : range.substring("bytes=".length()).split(",")) {
+            final String trimmed = spec.trim();
+            final int dash = trimmed.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // Suffix range
+                    first = Math.max(0, size - Long.parseLong(trimmed.substring(1)));
+                    last = size - 1;
+                }
+                else {
+                    first = Long.parseLong(trimmed.substring(0, dash));
+                    last = size - 1;
+                    if (dash < trimmed.length() - 1) {
+                        last = Long.parseLong(trimmed.substring(dash + 1));
+                        if (last < first) {
+                            // Invalid, as opposed to beyond the content
+                            return null;
+                        }
+                        last = Math.min(size - 1, last);
+                    }
+                }
+            }
+            catch (final NumberFormatException e) {
+                return null;
+            }
+            if (first <= last) {
+                ranges.add(new long[] {first, last});
+            }
+        }
+        if (ranges.size() > MAX_RANGES) {
+            return null;
+        }
+        return coalesce(ranges);
+    }
+
+    /**
+     * Sort ranges and merge the overlapping or adjacent ones.
+     * @param ranges ranges
+     * @return merged ranges
+     */
+    private static List<long[]> coalesce(final List<long[]> ranges) {
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        final List<long[]> ret = new ArrayList<>();
+        for (long[] range : ranges) {
+            final long[] prev;
+            if (ret.isEmpty()) {
+                prev = null;
+            }
+            else {
+                prev = ret.get(ret.size() - 1);
+            }
+            if (prev != null && range[0] <= prev[1] + 1) {
+                prev[1] = Math.max(prev[1], range[1]);
+            }
+            else {
+                ret.add(range);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Evaluate <em>If-Range</em>. An entity tag must match strongly, a date
+     * exactly.
+     * @param ifRange field value or null
+     * @param etag entity tag of the current content
+     * @param lastModified modification time in milliseconds
+     * @return ranges may be served
+     */
+    private static boolean ifRange(final String ifRange, final String etag, final long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        return HttpCaching.parseHttpDate(ifRange) / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * Content-Range value of a range.
+     * @param range {first, last}
+     * @param size content size
+     * @return field value
+     */
+    public static String contentRange(final long[] range, final long size) {
+        return range[0] + "-" + range[1] + "/" + size;
+    }
+
+    /**
+     * Content-Type of a multipart response.
+     * @return content-type
+     */
+    public static String multipartType() {
+        return "multipart/byteranges; boundary=" + BOUNDARY;
+    }
+
+    /**
+     * Header of a part of a multipart response.
+     * @param type content type of the parts
+     * @param range {first, last}
+     * @param size content size
+     * @return part header including the preceding delimiter
+     */
+    public static String partHeader(final String type, final long[] range, final long size) {
+        return CRLF + "--" + BOUNDARY + CRLF
+            + "Content-Type: " + type + CRLF
+            + "Content-Range: bytes " + contentRange(range, size) + CRLF + CRLF;
+    }
+
+    /**
+     * Closing delimiter of a multipart response.
+     * @return delimiter
+     */
+    public static String trailer() {
+        return CRLF + "--" + BOUNDARY + "--" + CRLF;
+    }
+
+    /**
+     * Length of a multipart response.
+     * @param type content type of the parts
+     * @param ranges ranges
+     * @param size content size
+     * @return length in bytes
+     */
+    public static long multipartLength(final String type, final List<long[]> ranges, final long size) {
+        long ret = trailer().length();
+        for (long[] range : ranges) {
+            ret += partHeader(type, range, size).length() + range[1] - range[0] + 1;
+        }
+        return ret;
+    }
+}
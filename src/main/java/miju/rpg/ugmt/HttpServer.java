@@ -1,17 +1,16 @@
 package miju.rpg.ugmt;
 
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +36,14 @@ public final class HttpServer {
     private static Data data;
 
     /** All connected clients. */
-    private static Map<String, Set<OutputStream>> clients = new Hashtable<String, Set<OutputStream>>();
+    private static Map<String, Set<WebSocket>> clients = new Hashtable<String, Set<WebSocket>>();
+
+    /** Pushes waiting for or holding the clients. */
+    private static final AtomicInteger PUSHES = new AtomicInteger();
+
+    static {
+        Metrics.gauge(Metrics.PUSH_QUEUE, "Pushes waiting or being sent.", PUSHES::get);
+    }
 
     /**
      * Hide Constructor.
@@ -51,7 +57,10 @@ public final class HttpServer {
      * @exception Exception on error
      */
     public static void main(final String[] args) throws Exception {
-        System.getProperties().load(HttpServer.class.getClassLoader().getResourceAsStream("appl.properties"));
+        final Properties appl = new Properties();
+        appl.load(HttpServer.class.getClassLoader().getResourceAsStream("appl.properties"));
+        // Definitions on the command line take precedence
+        appl.forEach(System.getProperties()::putIfAbsent);
 
         // Load data
         data = new Data();
@@ -71,8 +80,23 @@ public final class HttpServer {
      * @param txt the (raw) message issued.
      */
     public static void push(final String plugin, final String txt) {
+        PUSHES.incrementAndGet();
+        try {
+            pushNow(plugin, txt);
+        }
+        finally {
+            PUSHES.decrementAndGet();
+        }
+    }
+
+    /**
+     * Send a message to all web-sockets of a plugin in turn.
+     * @param plugin plugin that issues the message
+     * @param txt the (raw) message issued.
+     */
+    private static void pushNow(final String plugin, final String txt) {
         synchronized (clients) {
-            final Set<OutputStream> plugs = clients.get(plugin);
+            final Set<WebSocket> plugs = clients.get(plugin);
             if (plugs != null) {
                 LOGGER.debug("PUT plugin={} plugs.size={}: txt={}", plugin, plugs.size(), txt);
             }
@@ -82,12 +106,11 @@ public final class HttpServer {
             if (plugs == null) {
                 return;
             }
-            final Set<OutputStream> dead = new HashSet<OutputStream>();
+            final Set<WebSocket> dead = new HashSet<WebSocket>();
 
-            for (OutputStream client : clients.get(plugin)) {
+            for (WebSocket client : clients.get(plugin)) {
                 try {
-                    client.write(encodeForWebSocket(txt));
-                    client.flush();
+                    client.send(txt);
                 }
                 catch (final Exception e) {
                     dead.add(client);
@@ -99,17 +122,35 @@ public final class HttpServer {
     }
 
     /**
-     * Add another web socket (stream).
-     * @param plugin client registered for this plugin
-     * @param os output stream to use
+     * Add another web socket.
+     * @param socket socket, registered for its plugin
+     */
+    static void addWebSocket(final WebSocket socket) {
+        synchronized (clients) {
+            Set<WebSocket> sockets = clients.get(socket.getPlugin());
+            if (sockets == null) {
+                final Set<WebSocket> newSockets = new HashSet<WebSocket>();
+                sockets = newSockets;
+                clients.put(socket.getPlugin(), sockets);
+                // Read without the lock, which a slow push may hold
+                Metrics.gauge(Metrics.WEBSOCKETS, "Connected web-sockets by plugin.", newSockets::size,
+                        "plugin", socket.getPlugin());
+            }
+            sockets.add(socket);
+        }
+    }
+
+    /**
+     * Remove a closed web socket.
+     * @param socket socket
      */
-    static synchronized void addWebSocket(final String plugin, final OutputStream os) {
-        Set<OutputStream> streams = clients.get(plugin);
-        if (streams == null) {
-            streams = new HashSet<OutputStream>();
-            clients.put(plugin, streams);
+    static void removeWebSocket(final WebSocket socket) {
+        synchronized (clients) {
+            final Set<WebSocket> sockets = clients.get(socket.getPlugin());
+            if (sockets != null) {
+                sockets.remove(socket);
+            }
         }
-        streams.add(os);
     }
 
     /**
@@ -128,43 +169,12 @@ public final class HttpServer {
         return launch;
     }
 
-    /**
-     * Encode String for web-sockets.
-     * @param param string to encode
-     * @return encoded string
-     * @throws UnsupportedEncodingException on error
-     */
-    private static byte[] encodeForWebSocket(final String param) throws UnsupportedEncodingException {
-        final byte[] pay = param.getBytes(StandardCharsets.UTF_8);
-        byte[] head = new byte[] {
-            (byte) (128 + 1), (byte) pay.length
-        };
-        if (pay.length > 256 * 256 - 1) {
-            head = new byte[] {
-                    (byte) (128 + 1), (byte) (128 - 1),
-                    (byte) (pay.length / 256 / 256 / 256),
-                    (byte) ((pay.length / 256 / 256) % 256),
-                    (byte) ((pay.length / 256) % 256),
-                    (byte) (pay.length % 256)
-            };
-        }
-        else if (pay.length > 128 - 3) {
-            head = new byte[] {
-                    (byte) (128 + 1), (byte) (128 - 2),
-                    (byte) (pay.length / 256), (byte) (pay.length % 256) };
-        }
-        final byte[] result = new byte[head.length + pay.length];
-        System.arraycopy(head, 0, result, 0, head.length);
-        System.arraycopy(pay, 0, result, head.length, pay.length);
-        return result;
-    }
-
     /** Socket listener thread. */
     private static class SocketThread extends Thread {
         /** Port. */
         private int port;
-        /** Thread pool. */
-        private ExecutorService pool = Executors.newFixedThreadPool(10);
+        /** Thread pool, web-sockets run outside of it. */
+        private ExecutorService pool = Executors.newFixedThreadPool(Integer.getInteger("HTTP_THREADS", 10));
 
         /**
          * Constructor.
@@ -182,7 +192,7 @@ public final class HttpServer {
                 ssc.socket().bind(new InetSocketAddress(port));
                 SocketChannel sc;
                 while ((sc = ssc.accept()) != null) {
-                    pool.execute(new HttpWorkerThread(sc, true));
+                    pool.execute(new HttpWorkerThread(sc, port == GMPORT));
                 }
             }
             catch (final Exception e) {
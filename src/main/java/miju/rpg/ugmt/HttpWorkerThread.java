@@ -1,14 +1,16 @@
 package miju.rpg.ugmt;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
@@ -16,8 +18,11 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -29,6 +34,7 @@ import org.w3c.dom.Element;
 /**
  * This class is used to asynchronously answer a HTTP request.
  */
+@SuppressWarnings("try") // spans, see Trace
 public class HttpWorkerThread implements Runnable {
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpWorkerThread.class);
@@ -45,6 +51,24 @@ public class HttpWorkerThread implements Runnable {
     /** Helper constant. */
     private static final String HTTP_OK = "HTTP/1.1 200 OK";
 
+    /** Helper constant. */
+    private static final String HTTP_NOT_MODIFIED = "HTTP/1.1 304 Not Modified";
+
+    /** Helper constant. */
+    private static final String HTTP_PARTIAL = "HTTP/1.1 206 Partial Content";
+
+    /** Helper constant. */
+    private static final String HTTP_BAD_REQUEST = "HTTP/1.1 400 Bad Request";
+
+    /** Helper constant. */
+    private static final String HTTP_NOT_SATISFIABLE = "HTTP/1.1 416 Range Not Satisfiable";
+
+    /** Prefix of plugin main classes. */
+    private static final String PLUGIN_PREFIX = "miju.rpg.ugmt.";
+
+    /** Label of files served as is. */
+    private static final String STATIC = "static";
+
     /** Socket for communication. */
     private final SocketChannel socketChannel;
 
@@ -69,10 +93,10 @@ public class HttpWorkerThread implements Runnable {
     public void run() {
         try {
             final Socket socket = socketChannel.socket();
-            final BufferedReader bsr = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            final InputStream is = new BufferedInputStream(socket.getInputStream());
 
             // HTTP GET line
-            String in = bsr.readLine();
+            String in = HttpHeaders.readLine(is);
             if (in == null) {
                 in = "";
             }
@@ -80,6 +104,13 @@ public class HttpWorkerThread implements Runnable {
             LOGGER.info("in={}", in);
             final String[] requestParams = in.split("  *");
             final boolean head = requestParams[0].equals("HEAD");
+            final HttpHeaders headers = HttpHeaders.read(is);
+
+            // Handle websockets, which outlive this request
+            if (requestParams.length >= 2 && requestParams[1].startsWith(WEBSOCKET_INFIX)) {
+                handleWebSocket(requestParams[1].substring(WEBSOCKET_INFIX.length()), headers, socket, is);
+                return;
+            }
 
             try (OutputStream os = socket.getOutputStream()) {
                 if (requestParams.length < 2) {
@@ -87,12 +118,7 @@ public class HttpWorkerThread implements Runnable {
                     return;
                 }
 
-                // Handle websockets
                 String query = requestParams[1].substring(1);
-                if (requestParams[1].startsWith(WEBSOCKET_INFIX)) {
-                    handleWebSocket(requestParams[1].substring(WEBSOCKET_INFIX.length()), bsr, os);
-                    return;
-                }
 
                 // Get standard query
                 MimeType foundMimeType = null;
@@ -126,7 +152,13 @@ public class HttpWorkerThread implements Runnable {
                     }
                     else if (foundMimeType != null) {
                         // Standard query
-                        handleStandardQuery(head, foundMimeType.getMimeType(), absPath, osr);
+                        final long start = System.nanoTime();
+                        try (Trace.Span span = Trace.begin(STATIC)) {
+                            handleStandardQuery(head, foundMimeType, absPath, headers, osr);
+                        }
+                        finally {
+                            requestHistogram(STATIC).recordSince(start);
+                        }
                     }
                     else {
                         final String[] args = query.split("\\?|&|=");
@@ -135,7 +167,14 @@ public class HttpWorkerThread implements Runnable {
                         LOGGER.debug("query={} clsRsrcName={}", query, clsRsrcName);
                         if (HttpServer.class.getClassLoader().getResource(clsRsrcName) != null) {
                             // Programmatic
-                            handleProgrammatic(clsName, args, head, os, osr);
+                            final String plugin = clsName.substring(PLUGIN_PREFIX.length(), clsName.lastIndexOf('.'));
+                            final long start = System.nanoTime();
+                            try (Trace.Span span = Trace.begin(plugin)) {
+                                handleProgrammatic(clsName, args, head, headers, os, osr);
+                            }
+                            finally {
+                                requestHistogram(plugin).recordSince(start);
+                            }
                         }
                         else {
                             // Error
@@ -150,6 +189,15 @@ public class HttpWorkerThread implements Runnable {
         }
     }
 
+    /**
+     * Get the latency histogram of a plugin.
+     * @param plugin plugin id or {@link #STATIC}
+     * @return histogram
+     */
+    private static Histogram requestHistogram(final String plugin) {
+        return Metrics.histogram(Metrics.REQUEST, "Request latency by plugin.", "plugin", plugin);
+    }
+
     /**
      * Handle error output.
      * @param head handling HEAD directive
@@ -173,19 +221,83 @@ public class HttpWorkerThread implements Runnable {
      * @param cls class to start
      * @param args GET query string split
      * @param head HEAD directive?
+     * @param headers request header fields
      * @param os output stream
      * @param osr print writer
      * @throws Exception on error
      */
-    private void handleProgrammatic(final String cls, final String[] args, final boolean head, final OutputStream os, final PrintWriter osr) throws Exception {
+    private void handleProgrammatic(final String cls, final String[] args, final boolean head, final HttpHeaders headers,
+            final OutputStream os, final PrintWriter osr) throws Exception {
         LOGGER.debug("cls={}", cls);
         final HttpQueryParams argv = new HttpQueryParams(args);
         final AbstractMain launch = HttpServer.launch(cls);
+        final String type = launch.getContentType(argv);
+        final String cacheControl = HttpCaching.CACHE_CONTROL + launch.getCacheControl(argv);
 
-        writeHeader(launch.getContentType(argv), osr);
-        if (!head) {
-            final Object out = launch.getContent(argv, gm);
+        if (head) {
+            writeHeader(HTTP_OK, type, osr, cacheControl);
+        }
+        else {
+            final Object out;
+            try (Trace.Span span = Trace.span("getContent")) {
+                out = launch.getContent(argv, gm);
+            }
             LOGGER.debug("out.class={}", out.getClass());
+
+            // Validators
+            long lastModified = -1;
+            String etag;
+            byte[] bytes = null;
+            if (out instanceof String) {
+                bytes = ((String) out).getBytes(StandardCharsets.UTF_8);
+                etag = HttpCaching.etag(bytes);
+            }
+            else if (out instanceof File) {
+                lastModified = ((File) out).lastModified();
+                etag = HttpCaching.etag(((File) out).length(), lastModified);
+            }
+            else if (out instanceof ByteBuffer) {
+                etag = HttpCaching.etag((ByteBuffer) out);
+            }
+            else { // byte[]
+                bytes = (byte[]) out;
+                etag = HttpCaching.etag(bytes);
+            }
+
+            // Compression of in-memory content
+            final boolean compressible = bytes != null && HttpCompression.isCompressible(type);
+            String encoding = null;
+            if (compressible) {
+                encoding = HttpCompression.negotiate(headers, true, bytes.length);
+                etag = HttpCompression.etag(etag, encoding);
+            }
+
+            final List<String> fields = new ArrayList<>();
+            fields.add(HttpCaching.ETAG + etag);
+            fields.add(cacheControl);
+            if (lastModified >= 0) {
+                fields.add(HttpCaching.LAST_MODIFIED + HttpCaching.httpDate(lastModified));
+            }
+            if (compressible) {
+                fields.add(HttpCompression.VARY);
+            }
+            if (HttpCaching.notModified(headers, etag, lastModified)) {
+                writeHeader(HTTP_NOT_MODIFIED, null, osr, fields.toArray(new String[0]));
+                return;
+            }
+            if (encoding != null) {
+                fields.add(HttpCompression.CONTENT_ENCODING + encoding);
+                writeHeader(HTTP_OK, type, osr, fields.toArray(new String[0]));
+                final byte[] compressed;
+                try (Trace.Span span = Trace.span("compress")) {
+                    compressed = HttpCompression.compress(bytes, encoding);
+                }
+                os.write(compressed);
+                os.flush();
+                return;
+            }
+            writeHeader(HTTP_OK, type, osr, fields.toArray(new String[0]));
+
             if (out instanceof String) {
                 osr.println(out);
             }
@@ -195,6 +307,12 @@ public class HttpWorkerThread implements Runnable {
                 fc.transferTo(0, fc.size(), socketChannel);
                 fileInputStream.close();
             }
+            else if (out instanceof ByteBuffer) {
+                final ByteBuffer buf = ((ByteBuffer) out).duplicate();
+                while (buf.hasRemaining()) {
+                    socketChannel.write(buf);
+                }
+            }
             else { // byte[]
                 os.write((byte[]) out);
                 os.flush();
@@ -203,20 +321,121 @@ public class HttpWorkerThread implements Runnable {
     }
 
     /**
-     * Handle standard query output.
+     * Handle standard query output. Answers 304, if the client's copy is
+     * still current. Compressible files are served from their precompressed
+     * sidecar, if the client accepts that. Range requests are answered with
+     * the requested parts of the uncompressed file.
      * @param head handling HEAD directive
-     * @param type file type content-type
+     * @param type file type
      * @param absPath file to serve
+     * @param headers request header fields
      * @param osr print writer
      * @throws Exception on error
      */
-    private void handleStandardQuery(final boolean head, final String type, final Path absPath, final PrintWriter osr) throws Exception {
-        writeHeader(type, osr);
-        if (!head) {
-            final FileInputStream fileInputStream = new FileInputStream(absPath.toFile());
-            final FileChannel fc = fileInputStream.getChannel();
-            fc.transferTo(0, fc.size(), socketChannel);
-            fileInputStream.close();
+    private void handleStandardQuery(final boolean head, final MimeType type, final Path absPath, final HttpHeaders headers,
+            final PrintWriter osr) throws Exception {
+        final BasicFileAttributes attrs = Files.readAttributes(absPath, BasicFileAttributes.class);
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        String encoding = null;
+        if (headers.get("Range") == null) {
+            encoding = HttpCompression.negotiate(headers, type.isCompressible(), attrs.size());
+        }
+        final String etag = HttpCompression.etag(HttpCaching.etag(attrs.size(), lastModified), encoding);
+        final List<String> fields = new ArrayList<>();
+        fields.add(HttpCaching.ETAG + etag);
+        fields.add(HttpCaching.LAST_MODIFIED + HttpCaching.httpDate(lastModified));
+        fields.add(HttpCaching.CACHE_CONTROL + type.getCacheControl());
+        if (type.isCompressible()) {
+            fields.add(HttpCompression.VARY);
+        }
+        if (HttpCaching.notModified(headers, etag, lastModified)) {
+            writeHeader(HTTP_NOT_MODIFIED, null, osr, fields.toArray(new String[0]));
+            return;
+        }
+        fields.add(HttpRanges.ACCEPT_RANGES);
+
+        // Partial content
+        final long size = attrs.size();
+        final List<long[]> ranges = HttpRanges.parse(headers, etag, lastModified, size);
+        if (ranges != null && ranges.isEmpty()) {
+            fields.add(HttpRanges.CONTENT_RANGE + "*/" + size);
+            fields.add(HttpRanges.CONTENT_LENGTH + 0);
+            writeHeader(HTTP_NOT_SATISFIABLE, null, osr, fields.toArray(new String[0]));
+            return;
+        }
+        if (ranges != null) {
+            handleRanges(head, type.getMimeType(), absPath, size, ranges, fields, osr);
+            return;
+        }
+
+        Path absBody = absPath;
+        if (encoding != null) {
+            fields.add(HttpCompression.CONTENT_ENCODING + encoding);
+            absBody = HttpCompression.sidecar(absPath, encoding);
+        }
+        try (FileChannel fc = FileChannel.open(absBody)) {
+            fields.add(HttpRanges.CONTENT_LENGTH + fc.size());
+            writeHeader(HTTP_OK, type.getMimeType(), osr, fields.toArray(new String[0]));
+            if (!head) {
+                transfer(fc, 0, fc.size());
+            }
+        }
+    }
+
+    /**
+     * Handle partial content output, one range as it is, several ranges as
+     * multipart.
+     * @param head handling HEAD directive
+     * @param type content type
+     * @param absPath file to serve
+     * @param size file size
+     * @param ranges ranges to serve
+     * @param fields header fields so far
+     * @param osr print writer
+     * @throws Exception on error
+     */
+    private void handleRanges(final boolean head, final String type, final Path absPath, final long size,
+            final List<long[]> ranges, final List<String> fields, final PrintWriter osr) throws Exception {
+        try (FileChannel fc = FileChannel.open(absPath)) {
+            if (ranges.size() == 1) {
+                final long[] range = ranges.get(0);
+                fields.add(HttpRanges.CONTENT_RANGE + HttpRanges.contentRange(range, size));
+                fields.add(HttpRanges.CONTENT_LENGTH + (range[1] - range[0] + 1));
+                writeHeader(HTTP_PARTIAL, type, osr, fields.toArray(new String[0]));
+                if (!head) {
+                    transfer(fc, range[0], range[1] - range[0] + 1);
+                }
+                return;
+            }
+            fields.add(HttpRanges.CONTENT_LENGTH + HttpRanges.multipartLength(type, ranges, size));
+            writeHeader(HTTP_PARTIAL, HttpRanges.multipartType(), osr, fields.toArray(new String[0]));
+            if (!head) {
+                for (long[] range : ranges) {
+                    osr.print(HttpRanges.partHeader(type, range, size));
+                    osr.flush();
+                    transfer(fc, range[0], range[1] - range[0] + 1);
+                }
+                osr.print(HttpRanges.trailer());
+                osr.flush();
+            }
+        }
+    }
+
+    /**
+     * Send part of a file to the socket without copying it through the heap.
+     * @param fc file to send
+     * @param position first byte
+     * @param count number of bytes
+     * @throws Exception on error
+     */
+    private void transfer(final FileChannel fc, final long position, final long count) throws Exception {
+        long done = 0;
+        while (done < count) {
+            final long sent = fc.transferTo(position + done, count - done, socketChannel);
+            if (sent <= 0 && position + done >= fc.size()) {
+                throw new IOException("File shrunk while sending");
+            }
+            done += sent;
         }
     }
 
@@ -267,39 +486,69 @@ public class HttpWorkerThread implements Runnable {
      * @param osr stream to write to
      */
     private static void writeHeader(final String type, final PrintWriter osr) {
-        osr.println(HTTP_OK);
-        osr.println(HTTP_CONTENTTYPE + type);
+        writeHeader(HTTP_OK, type, osr);
+    }
+
+    /**
+     * Handle header.
+     * @param status status line
+     * @param type content type or null
+     * @param osr stream to write to
+     * @param fields additional header fields
+     */
+    private static void writeHeader(final String status, final String type, final PrintWriter osr, final String... fields) {
+        osr.println(status);
+        if (type != null) {
+            osr.println(HTTP_CONTENTTYPE + type);
+        }
+        for (String field : fields) {
+            osr.println(field);
+        }
         osr.println();
         osr.flush();
     }
 
     /**
-     * Handle web-socket register query.
+     * Handle web-socket register query. After the handshake the socket gets a
+     * thread of its own to read the client's messages.
      * @param plugin plugin to handle socket for
-     * @param bsr reader to read the rest of the protocol
-     * @param os output stream
+     * @param headers request header fields
+     * @param socket socket
+     * @param is stream read so far
      * @throws Exception on error
      */
-    private static void handleWebSocket(final String plugin, final BufferedReader bsr, final OutputStream os) throws Exception {
+    private void handleWebSocket(final String plugin, final HttpHeaders headers, final Socket socket, final InputStream is)
+            throws Exception {
+        final OutputStream os = socket.getOutputStream();
         final PrintWriter osr = new PrintWriter(os, false);
         // Handshake
-        String key = null;
-        while (key == null) {
-            final String data = bsr.readLine();
-            LOGGER.info("data={}", data);
-            if (data != null && data.startsWith("Sec-WebSocket-Key")) {
-                final String[] keys = data.split(": ");
-                key = keys[1] + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-                key = getSHA1(key);
-            }
+        final String clientKey = headers.get("Sec-WebSocket-Key");
+        if (clientKey == null || !"websocket".equalsIgnoreCase(headers.get("Upgrade"))) {
+            LOGGER.warn("plugin={} bad web-socket handshake", plugin);
+            osr.print(HTTP_BAD_REQUEST + HTTP_LF);
+            osr.print("Connection: close\r\n");
+            osr.print(HTTP_LF);
+            osr.flush();
+            socket.close();
+            return;
         }
+        final String key = getSHA1(clientKey + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11");
+        LOGGER.info("key={}", key);
         osr.print("HTTP/1.1 101 Switching Protocols" + HTTP_LF);
         osr.print("Upgrade: websocket\r\n");
         osr.print("Connection: Upgrade\r\n");
         osr.print("Sec-WebSocket-Accept: " + key + HTTP_LF);
+        final PerMessageDeflate deflate = PerMessageDeflate.negotiate(plugin, headers.get(PerMessageDeflate.EXTENSIONS));
+        if (deflate != null) {
+            osr.print(PerMessageDeflate.EXTENSIONS + ": " + deflate.getResponse() + HTTP_LF);
+        }
         osr.print(HTTP_LF);
         osr.flush();
-        HttpServer.addWebSocket(plugin, os);
+        final WebSocket webSocket = new WebSocket(socket, is, plugin, gm, deflate);
+        HttpServer.addWebSocket(webSocket);
+        final Thread reader = new Thread(webSocket, "websocket-" + plugin);
+        reader.setDaemon(true);
+        reader.start();
     }
 
     /**
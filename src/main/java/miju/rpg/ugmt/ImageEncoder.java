@@ -0,0 +1,421 @@
+package miju.rpg.ugmt;
+
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encoder for generated images. PNG is encoded here: rows are filtered
+ * adaptively and deflated in blocks of rows, each block primed with the end
+ * of the previous one as dictionary and ended by a sync flush, so blocks of
+ * large images can be compressed in parallel and still form one zlib stream.
+ * Other formats go through an {@link ImageWriter}, which is reused per
+ * thread.
+ * The deflate level is <b>IMAGE_PNG_LEVEL</b>; transient images may use the
+ * fast mode with <b>IMAGE_PNG_FAST_LEVEL</b>. <b>IMAGE_JPG_QUALITY</b> sets
+ * the JPEG quality.
+ */
+@SuppressWarnings("try") // spans, see Trace
+public final class ImageEncoder {
+    /** PNG signature. */
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    /** Rows per deflate block. */
+    private static final int BLOCK_ROWS = Integer.getInteger("IMAGE_PNG_BLOCK_ROWS", 64);
+
+    /** Smallest image (in pixels) worth encoding in parallel. */
+    private static final int PARALLEL_PIXELS = 512 * 512;
+
+    /** Deflate dictionary size. */
+    private static final int DICTIONARY = 32 * 1024;
+
+    /** Raw deflaters per thread and level; the level of a primed deflater must not change. */
+    private static final ThreadLocal<Map<Integer, Deflater>> DEFLATERS = ThreadLocal.withInitial(HashMap::new);
+
+    /** Image writers per thread and format. */
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+
+    /** Hide constructor. */
+    private ImageEncoder() {
+    }
+
+    /**
+     * Encode an image.
+     * @param img image to encode
+     * @param format image format, e.g. png or jpg
+     * @return encoded image
+     * @throws IOException on error
+     */
+    public static byte[] encode(final BufferedImage img, final String format) throws IOException {
+        final long start = System.nanoTime();
+        try (Trace.Span span = Trace.span("encode " + format)) {
+            if ("png".equalsIgnoreCase(format)) {
+                return encodePng(img, Integer.getInteger("IMAGE_PNG_LEVEL", Deflater.DEFAULT_COMPRESSION), true);
+            }
+            return encodeWithWriter(img, format);
+        }
+        finally {
+            encodeHistogram(format, "best").recordSince(start);
+        }
+    }
+
+    /**
+     * Encode an image fast at the cost of size, meant for transient images.
+     * PNG rows are all filtered with <em>Sub</em> instead of choosing the
+     * best filter per row.
+     * @param img image to encode
+     * @param format image format, e.g. png or jpg
+     * @return encoded image
+     * @throws IOException on error
+     */
+    public static byte[] encodeFast(final BufferedImage img, final String format) throws IOException {
+        final long start = System.nanoTime();
+        try (Trace.Span span = Trace.span("encode fast " + format)) {
+            if ("png".equalsIgnoreCase(format)) {
+                return encodePng(img, Integer.getInteger("IMAGE_PNG_FAST_LEVEL", Deflater.BEST_SPEED), false);
+            }
+            return encodeWithWriter(img, format);
+        }
+        finally {
+            encodeHistogram(format, "fast").recordSince(start);
+        }
+    }
+
+    /**
+     * Get the encode time histogram.
+     * @param format image format
+     * @param mode <em>best</em> or <em>fast</em>
+     * @return histogram
+     */
+    private static Histogram encodeHistogram(final String format, final String mode) {
+        return Metrics.histogram(Metrics.IMAGE_ENCODE, "Image encode time by format.", "format",
+                format.toLowerCase(Locale.ROOT), "mode", mode);
+    }
+
+    /**
+     * Encode an image into a file, which is replaced atomically.
+     * @param img image to encode
+     * @param format image format, e.g. png or jpg
+     * @param absPath file to write
+     * @throws IOException on error
+     */
+    public static void write(final BufferedImage img, final String format, final Path absPath) throws IOException {
+        Utils.writeAtomically(absPath, encode(img, format));
+    }
+
+    /**
+     * Encode with the thread's image writer for the format.
+     * @param img image to encode
+     * @param format image format
+     * @return encoded image
+     * @throws IOException on error
+     */
+    private static byte[] encodeWithWriter(final BufferedImage img, final String format) throws IOException {
+        final String key = format.toLowerCase(Locale.ROOT);
+        ImageWriter writer = WRITERS.get().get(key);
+        if (writer == null) {
+            final Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(key);
+            if (!it.hasNext()) {
+                throw new IOException("No writer for " + format);
+            }
+            writer = it.next();
+            WRITERS.get().put(key, writer);
+        }
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        if ("jpg".equals(key) || "jpeg".equals(key)) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Float.parseFloat(System.getProperty("IMAGE_JPG_QUALITY", "0.75")));
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(baos)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), param);
+        }
+        finally {
+            writer.reset();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Encode a PNG, 8 bit RGB or RGBA.
+     * @param img image to encode
+     * @param level deflate level
+     * @param adaptive choose the filter per row
+     * @return encoded image
+     * @throws IOException on error
+     */
+    private static byte[] encodePng(final BufferedImage img, final int level, final boolean adaptive) throws IOException {
+        final int w = img.getWidth();
+        final int h = img.getHeight();
+        final boolean alpha = img.getTransparency() != Transparency.OPAQUE;
+        final int bpp;
+        if (alpha) {
+            bpp = 4;
+        }
+        else {
+            bpp = 3;
+        }
+        final int stride = 1 + w * bpp;
+
+        // Filter all blocks first, the filtered data also feeds the
+        // dictionaries; then deflate them, both in parallel for large images
+        final byte[] raw = new byte[stride * h];
+        final int blocks = (h + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        final boolean parallel = (long) w * h >= PARALLEL_PIXELS;
+        IntStream filtering = IntStream.range(0, blocks);
+        IntStream deflating = IntStream.range(0, blocks);
+        if (parallel) {
+            filtering = filtering.parallel();
+            deflating = deflating.parallel();
+        }
+        filtering.forEach(b -> filterBlock(img, b, alpha, adaptive, raw, stride));
+        final List<byte[]> deflated = deflating.mapToObj(b -> deflateBlock(raw, b, stride, h, level)).collect(Collectors.toList());
+
+        final Adler32 adler = new Adler32();
+        adler.update(raw, 0, raw.length);
+        final ByteArrayOutputStream idat = new ByteArrayOutputStream(raw.length / 3 + 64);
+        idat.write(0x78);
+        idat.write(0x9c);
+        for (byte[] block : deflated) {
+            idat.write(block);
+        }
+        final long sum = adler.getValue();
+        idat.write((int) (sum >>> 24));
+        idat.write((int) (sum >>> 16));
+        idat.write((int) (sum >>> 8));
+        idat.write((int) sum);
+
+        final ByteArrayOutputStream png = new ByteArrayOutputStream(idat.size() + 64);
+        png.write(SIGNATURE);
+        final ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(w).putInt(h).put((byte) 8);
+        if (alpha) {
+            ihdr.put((byte) 6);
+        }
+        else {
+            ihdr.put((byte) 2);
+        }
+        ihdr.put((byte) 0).put((byte) 0).put((byte) 0);
+        chunk(png, "IHDR", ihdr.array());
+        chunk(png, "IDAT", idat.toByteArray());
+        chunk(png, "IEND", new byte[0]);
+        return png.toByteArray();
+    }
+
+    /**
+     * Unpack ARGB pixels into PNG byte order.
+     * @param argb pixels
+     * @param out RGB or RGBA bytes
+     * @param alpha with alpha channel
+     */
+    private static void unpack(final int[] argb, final byte[] out, final boolean alpha) {
+        int j = 0;
+        for (int p : argb) {
+            out[j++] = (byte) (p >> 16);
+            out[j++] = (byte) (p >> 8);
+            out[j++] = (byte) p;
+            if (alpha) {
+                out[j++] = (byte) (p >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Filter a block of rows.
+     * @param img image to encode
+     * @param block block number
+     * @param alpha with alpha channel
+     * @param adaptive choose the filter per row, else use Sub
+     * @param raw filtered data
+     * @param stride bytes per filtered row
+     */
+    private static void filterBlock(final BufferedImage img, final int block, final boolean alpha, final boolean adaptive,
+            final byte[] raw, final int stride) {
+        final int w = img.getWidth();
+        final int bpp = (stride - 1) / w;
+        final int[] argb = new int[w];
+        byte[] prev = new byte[w * bpp];
+        byte[] cur = new byte[w * bpp];
+        final byte[][] candidates = new byte[5][w * bpp];
+        final int y0 = block * BLOCK_ROWS;
+        if (y0 > 0) {
+            ImageScaler.readRow(img, y0 - 1, argb, !alpha);
+            unpack(argb, prev, alpha);
+        }
+        for (int y = y0; y < Math.min(img.getHeight(), y0 + BLOCK_ROWS); y++) {
+            ImageScaler.readRow(img, y, argb, !alpha);
+            unpack(argb, cur, alpha);
+            if (adaptive) {
+                filterRow(cur, prev, bpp, candidates, raw, y * stride);
+            }
+            else {
+                filterSub(cur, bpp, raw, y * stride);
+            }
+            final byte[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+    }
+
+    /**
+     * Filter a row with the PNG filter yielding the smallest sum of absolute
+     * differences. All filters are computed in one pass.
+     * @param cur current row
+     * @param prev previous row, zero for the first
+     * @param bpp bytes per pixel
+     * @param candidates scratch rows per filter
+     * @param out filtered data
+     * @param offset position of the row (filter type byte) in the data
+     */
+    private static void filterRow(final byte[] cur, final byte[] prev, final int bpp, final byte[][] candidates,
+            final byte[] out, final int offset) {
+        final byte[] none = candidates[0];
+        final byte[] sub = candidates[1];
+        final byte[] up = candidates[2];
+        final byte[] avg = candidates[3];
+        final byte[] pth = candidates[4];
+        final long[] sums = new long[candidates.length];
+        for (int i = 0; i < cur.length; i++) {
+            final int x = cur[i] & 0xff;
+            final int b = prev[i] & 0xff;
+            int a = 0;
+            int c = 0;
+            if (i >= bpp) {
+                a = cur[i - bpp] & 0xff;
+                c = prev[i - bpp] & 0xff;
+            }
+            none[i] = (byte) x;
+            sub[i] = (byte) (x - a);
+            up[i] = (byte) (x - b);
+            avg[i] = (byte) (x - ((a + b) >> 1));
+            pth[i] = (byte) (x - paeth(a, b, c));
+            sums[0] += Math.abs(none[i]);
+            sums[1] += Math.abs(sub[i]);
+            sums[2] += Math.abs(up[i]);
+            sums[3] += Math.abs(avg[i]);
+            sums[4] += Math.abs(pth[i]);
+        }
+        int best = 0;
+        for (int type = 1; type < sums.length; type++) {
+            if (sums[type] < sums[best]) {
+                best = type;
+            }
+        }
+        out[offset] = (byte) best;
+        System.arraycopy(candidates[best], 0, out, offset + 1, cur.length);
+    }
+
+    /**
+     * Filter a row with <em>Sub</em>.
+     * @param cur current row
+     * @param bpp bytes per pixel
+     * @param out filtered data
+     * @param offset position of the row (filter type byte) in the data
+     */
+    private static void filterSub(final byte[] cur, final int bpp, final byte[] out, final int offset) {
+        out[offset] = 1;
+        System.arraycopy(cur, 0, out, offset + 1, bpp);
+        for (int i = bpp; i < cur.length; i++) {
+            out[offset + 1 + i] = (byte) (cur[i] - cur[i - bpp]);
+        }
+    }
+
+    /**
+     * PNG Paeth predictor.
+     * @param a left
+     * @param b above
+     * @param c upper left
+     * @return predictor
+     */
+    private static int paeth(final int a, final int b, final int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        if (pb <= pc) {
+            return b;
+        }
+        return c;
+    }
+
+    /**
+     * Deflate a block of filtered rows as part of one raw deflate stream.
+     * @param raw filtered data
+     * @param block block number
+     * @param stride bytes per filtered row
+     * @param h image height
+     * @param level deflate level
+     * @return deflated block
+     */
+    private static byte[] deflateBlock(final byte[] raw, final int block, final int stride, final int h, final int level) {
+        final int start = block * BLOCK_ROWS * stride;
+        final int end = Math.min(h, (block + 1) * BLOCK_ROWS) * stride;
+        final boolean last = end == raw.length;
+        final Deflater deflater = DEFLATERS.get().computeIfAbsent(level, l -> new Deflater(l, true));
+        deflater.reset();
+        if (start > 0) {
+            final int dict = Math.min(DICTIONARY, start);
+            deflater.setDictionary(raw, start - dict, dict);
+        }
+        deflater.setInput(raw, start, end - start);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((end - start) / 3 + 64);
+        final byte[] buf = new byte[16 * 1024];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        }
+        else {
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                out.write(buf, 0, n);
+            }
+            while (n == buf.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a PNG chunk.
+     * @param png stream to write to
+     * @param type chunk type
+     * @param data chunk data
+     * @throws IOException on error
+     */
+    private static void chunk(final ByteArrayOutputStream png, final String type, final byte[] data) throws IOException {
+        final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        png.write(ByteBuffer.allocate(4).putInt(data.length).array());
+        png.write(typeBytes);
+        png.write(data);
+        png.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+    }
+}
@@ -0,0 +1,323 @@
+package miju.rpg.ugmt;
+
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Separable image resampler for up- and down-scaling. Each source row is
+ * filtered horizontally once and kept in a small ring of rows, from which the
+ * vertical filter writes the target pixels directly into the target raster.
+ * Only a region of the scaled image needs to be rendered, so memory is
+ * bounded by the region and the filter size, not by the scaled image.
+ * Filtering is done on premultiplied alpha, so transparent pixels don't
+ * bleed their color.
+ */
+@SuppressWarnings("try") // spans, see Trace
+public final class ImageScaler {
+    /**
+     * Resampling filter.
+     */
+    public enum Filter {
+        /** Nearest neighbour, cheapest, for previews. */
+        NEAREST(0.5),
+        /** Triangle filter. */
+        BILINEAR(1),
+        /** Catmull-Rom cubic. */
+        BICUBIC(2);
+
+        /** Filter radius at scale 1. */
+        private final double radius;
+
+        /**
+         * Constructor.
+         * @param aRadius filter radius
+         */
+        Filter(final double aRadius) {
+            radius = aRadius;
+        }
+
+        /**
+         * Filter kernel.
+         * @param t distance from the center
+         * @return weight
+         */
+        private double weight(final double t) {
+            final double x = Math.abs(t);
+            if (this == BILINEAR) {
+                return Math.max(0, 1 - x);
+            }
+            if (x < 1) {
+                return 1.5 * x * x * x - 2.5 * x * x + 1;
+            }
+            if (x < 2) {
+                return -0.5 * x * x * x + 2.5 * x * x - 4 * x + 2;
+            }
+            return 0;
+        }
+    }
+
+    /** Hide constructor. */
+    private ImageScaler() {
+    }
+
+    /**
+     * Scale an image.
+     * @param src image to scale
+     * @param targetWidth width of the scaled image
+     * @param targetHeight height of the scaled image
+     * @param filter resampling filter
+     * @return scaled image
+     */
+    public static BufferedImage scale(final BufferedImage src, final int targetWidth, final int targetHeight,
+            final Filter filter) {
+        return scaleRegion(src, targetWidth, targetHeight, 0, 0, targetWidth, targetHeight, filter);
+    }
+
+    /**
+     * Render a region of a scaled image without rendering the rest.
+     * @param src image to scale
+     * @param targetWidth width of the (virtual) scaled image
+     * @param targetHeight height of the (virtual) scaled image
+     * @param rx left of the region in the scaled image
+     * @param ry top of the region in the scaled image
+     * @param rw width of the region
+     * @param rh height of the region
+     * @param filter resampling filter
+     * @return region of the scaled image, opaque if the source is
+     */
+    public static BufferedImage scaleRegion(final BufferedImage src, final int targetWidth, final int targetHeight,
+            final int rx, final int ry, final int rw, final int rh, final Filter filter) {
+        try (Trace.Span span = Trace.span("scale")) {
+            return scaleRegionTraced(src, targetWidth, targetHeight, rx, ry, rw, rh, filter);
+        }
+    }
+
+    /**
+     * Render a region of a scaled image, see {@link #scaleRegion}.
+     * @param src image to scale
+     * @param targetWidth width of the (virtual) scaled image
+     * @param targetHeight height of the (virtual) scaled image
+     * @param rx left of the region in the scaled image
+     * @param ry top of the region in the scaled image
+     * @param rw width of the region
+     * @param rh height of the region
+     * @param filter resampling filter
+     * @return region of the scaled image
+     */
+    private static BufferedImage scaleRegionTraced(final BufferedImage src, final int targetWidth, final int targetHeight,
+            final int rx, final int ry, final int rw, final int rh, final Filter filter) {
+        final boolean opaque = src.getTransparency() == Transparency.OPAQUE;
+        int type = BufferedImage.TYPE_INT_ARGB;
+        if (opaque) {
+            type = BufferedImage.TYPE_INT_RGB;
+        }
+        final BufferedImage ret = new BufferedImage(rw, rh, type);
+        final int[] dst = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+
+        final Contributions cols = new Contributions(src.getWidth(), targetWidth, rx, rw, filter);
+        final Contributions rows = new Contributions(src.getHeight(), targetHeight, ry, rh, filter);
+
+        // Ring of horizontally filtered source rows, premultiplied ARGB
+        final int ringSize = rows.maxCount;
+        final float[][] ring = new float[ringSize][4 * rw];
+        final int[] ringRow = new int[ringSize];
+        Arrays.fill(ringRow, -1);
+        final int[] srcRow = new int[src.getWidth()];
+        final float[] acc = new float[4];
+
+        for (int dy = 0; dy < rh; dy++) {
+            final int start = rows.start[dy];
+            final int count = rows.count[dy];
+            for (int sy = start; sy < start + count; sy++) {
+                final int slot = sy % ringSize;
+                if (ringRow[slot] != sy) {
+                    readRow(src, sy, srcRow, opaque);
+                    filterRow(srcRow, cols, ring[slot]);
+                    ringRow[slot] = sy;
+                }
+            }
+            final int base = dy * rw;
+            for (int dx = 0; dx < rw; dx++) {
+                acc[0] = 0;
+                acc[1] = 0;
+                acc[2] = 0;
+                acc[3] = 0;
+                for (int k = 0; k < count; k++) {
+                    final float w = rows.weights[dy][k];
+                    final float[] row = ring[(start + k) % ringSize];
+                    final int i = 4 * dx;
+                    acc[0] += w * row[i];
+                    acc[1] += w * row[i + 1];
+                    acc[2] += w * row[i + 2];
+                    acc[3] += w * row[i + 3];
+                }
+                dst[base + dx] = pack(acc, opaque);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read a source row as ARGB, straight from the raster if possible.
+     * @param src source image
+     * @param y row
+     * @param out row pixels
+     * @param opaque ignore alpha
+     */
+    static void readRow(final BufferedImage src, final int y, final int[] out, final boolean opaque) {
+        final int w = src.getWidth();
+        final int type = src.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && src.getRaster().getDataBuffer() instanceof DataBufferInt
+                && src.getRaster().getParent() == null) {
+            final int[] data = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+            System.arraycopy(data, y * w, out, 0, w);
+        }
+        else {
+            src.getRGB(0, y, w, 1, out, 0, w);
+        }
+        if (opaque || type == BufferedImage.TYPE_INT_RGB) {
+            for (int i = 0; i < w; i++) {
+                out[i] |= 0xff000000;
+            }
+        }
+    }
+
+    /**
+     * Filter a source row horizontally into premultiplied float ARGB.
+     * @param srcRow source pixels
+     * @param cols horizontal contributions
+     * @param out filtered row, four floats per target pixel
+     */
+    private static void filterRow(final int[] srcRow, final Contributions cols, final float[] out) {
+        for (int dx = 0; dx < cols.count.length; dx++) {
+            float a = 0;
+            float r = 0;
+            float g = 0;
+            float b = 0;
+            final float[] weights = cols.weights[dx];
+            final int start = cols.start[dx];
+            for (int k = 0; k < cols.count[dx]; k++) {
+                final int p = srcRow[start + k];
+                final float pa = (p >>> 24) * weights[k];
+                a += pa;
+                r += ((p >> 16) & 0xff) * pa;
+                g += ((p >> 8) & 0xff) * pa;
+                b += (p & 0xff) * pa;
+            }
+            final int i = 4 * dx;
+            out[i] = a;
+            out[i + 1] = r / 255f;
+            out[i + 2] = g / 255f;
+            out[i + 3] = b / 255f;
+        }
+    }
+
+    /**
+     * Un-premultiply, clamp and pack a pixel.
+     * @param acc premultiplied float ARGB
+     * @param opaque ignore alpha
+     * @return ARGB
+     */
+    private static int pack(final float[] acc, final boolean opaque) {
+        final int a = clamp(acc[0]);
+        if (a == 0) {
+            return 0;
+        }
+        float f = 255f / acc[0];
+        if (opaque) {
+            f = 1;
+        }
+        return (a << 24) | (clamp(acc[1] * f) << 16) | (clamp(acc[2] * f) << 8) | clamp(acc[3] * f);
+    }
+
+    /**
+     * Round and clamp a channel.
+     * @param v channel value
+     * @return 0..255
+     */
+    private static int clamp(final float v) {
+        final int i = Math.round(v);
+        if (i < 0) {
+            return 0;
+        }
+        if (i > 255) {
+            return 255;
+        }
+        return i;
+    }
+
+    /**
+     * Source pixels and weights contributing to each target pixel along one
+     * axis. Weights of taps beyond the edge go to the edge pixel.
+     */
+    private static final class Contributions {
+        /** First source pixel per target pixel. */
+        private final int[] start;
+
+        /** Number of source pixels per target pixel. */
+        private final int[] count;
+
+        /** Normalized weights per target pixel. */
+        private final float[][] weights;
+
+        /** Largest count. */
+        private int maxCount = 1;
+
+        /**
+         * Constructor.
+         * @param srcSize source size
+         * @param dstSize scaled size
+         * @param offset first target pixel of the region
+         * @param length region length
+         * @param filter resampling filter
+         */
+        private Contributions(final int srcSize, final int dstSize, final int offset, final int length, final Filter filter) {
+            start = new int[length];
+            count = new int[length];
+            weights = new float[length][];
+            final double ratio = (double) srcSize / dstSize;
+            final double stretch = Math.max(1, ratio);
+            final double support = filter.radius * stretch;
+            for (int d = 0; d < length; d++) {
+                final double center = (offset + d + 0.5) * ratio - 0.5;
+                if (filter == Filter.NEAREST) {
+                    start[d] = clampIndex((int) Math.floor(center + 0.5), srcSize);
+                    count[d] = 1;
+                    weights[d] = new float[] {1};
+                    continue;
+                }
+                final int lo = (int) Math.ceil(center - support);
+                final int hi = (int) Math.floor(center + support);
+                final int first = clampIndex(lo, srcSize);
+                final int last = clampIndex(hi, srcSize);
+                final double[] w = new double[last - first + 1];
+                double sum = 0;
+                for (int j = lo; j <= hi; j++) {
+                    final double v = filter.weight((j - center) / stretch);
+                    w[clampIndex(j, srcSize) - first] += v;
+                    sum += v;
+                }
+                start[d] = first;
+                count[d] = w.length;
+                weights[d] = new float[w.length];
+                for (int k = 0; k < w.length; k++) {
+                    weights[d][k] = (float) (w[k] / sum);
+                }
+                maxCount = Math.max(maxCount, w.length);
+            }
+        }
+
+        /**
+         * Clamp a source index to the image.
+         * @param i index
+         * @param size source size
+         * @return clamped index
+         */
+        private static int clampIndex(final int i, final int size) {
+            return Math.max(0, Math.min(size - 1, i));
+        }
+    }
+}
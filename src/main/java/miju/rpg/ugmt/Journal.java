@@ -0,0 +1,427 @@
+package miju.rpg.ugmt;
+
+import static miju.rpg.ugmt.XmlNames.Attributes.ID;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Append-only journal of the edits of the data, in <em>data/journal</em>.
+ * Each edit is a line <em>time, id, key, value</em> (tab separated,
+ * backslash escaped) appended to <em>journal.log</em>; the log is synced to
+ * disk every <b>PERSIST_FSYNC_SECONDS</b> (default 5, 0 for every edit).
+ * After <b>JOURNAL_COMPACT_EDITS</b> (default 1000) edits the latest value
+ * of each id and key is written to <em>snapshot.xml</em>, as element text to
+ * keep white space, and the log is emptied. Loaded documents are brought up to date by {@link #replay}.
+ */
+final class Journal {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Journal.class);
+
+    /** Element of the snapshot. */
+    private static final String EDIT = "edit";
+
+    /** Attribute of the snapshot. */
+    private static final String TIME = "time";
+
+    /** Attribute of the snapshot. */
+    private static final String KEY = "key";
+
+    /** Log file. */
+    private final Path absLog;
+
+    /** Snapshot file. */
+    private final Path absSnapshot;
+
+    /** Sync interval, 0 for syncing each edit. */
+    private final long fsyncSeconds = Long.getLong("PERSIST_FSYNC_SECONDS", 5);
+
+    /** Edits in the log before it is compacted. */
+    private final int compactEdits = Integer.getInteger("JOURNAL_COMPACT_EDITS", 1000);
+
+    /** Latest edit by id and key. */
+    private final Map<String, Edit> edits = new LinkedHashMap<>();
+
+    /** Syncing and compacting thread. */
+    private final ScheduledExecutorService background;
+
+    /** Log, positioned at its end. */
+    private FileChannel log;
+
+    /** Edits in the log. */
+    private int logged;
+
+    /** Appended since the last sync. */
+    private boolean unsynced;
+
+    /** Compaction scheduled. */
+    private boolean compacting;
+
+    /**
+     * Constructor. Reads snapshot and log, starts the sync schedule and
+     * registers the shutdown sync.
+     * @param absDir journal directory, created if missing
+     * @throws IOException on error
+     */
+    Journal(final Path absDir) throws IOException {
+        absLog = absDir.resolve("journal.log");
+        absSnapshot = absDir.resolve("snapshot.xml");
+        Files.createDirectories(absDir);
+        readSnapshot();
+        readLog();
+        log = FileChannel.open(absLog, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        LOGGER.info("journal={} edits={} logged={}", absDir, edits.size(), logged);
+
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread ret = new Thread(r, "journal");
+            ret.setDaemon(true);
+            return ret;
+        });
+        if (fsyncSeconds > 0) {
+            background.scheduleWithFixedDelay(this::syncQuietly, fsyncSeconds, fsyncSeconds, TimeUnit.SECONDS);
+        }
+        if (logged > 0) {
+            scheduleCompaction();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "journal-close"));
+    }
+
+    /**
+     * Apply all edits to a document.
+     * @param doc document, as loaded from the data files
+     */
+    synchronized void replay(final Document doc) {
+        final Map<String, Element> byId = new HashMap<>();
+        XmlStreamsUtil.elementStream(doc.getDocumentElement().getChildNodes())
+                .forEach(e -> byId.putIfAbsent(e.getAttribute(ID), e));
+        int missing = 0;
+        for (Edit edit : edits.values()) {
+            final Element elem = byId.get(edit.id);
+            if (elem != null) {
+                elem.setAttribute(edit.key, edit.value);
+            }
+            else {
+                missing++;
+            }
+        }
+        LOGGER.info("replayed={} missing={}", edits.size() - missing, missing);
+    }
+
+    /**
+     * Append an edit.
+     * @param id id of the edited element
+     * @param key attribute
+     * @param value new value
+     * @throws IOException on error
+     */
+    synchronized void append(final String id, final String key, final String value) throws IOException {
+        final Edit edit = new Edit(System.currentTimeMillis(), id, key, value);
+        final ByteBuffer line = ByteBuffer.wrap(edit.toLine().getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            log.write(line);
+        }
+        if (fsyncSeconds == 0) {
+            log.force(false);
+        }
+        else {
+            unsynced = true;
+        }
+        put(edit);
+        logged++;
+        if (logged >= compactEdits) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Force the log to disk.
+     * @throws IOException on error
+     */
+    synchronized void sync() throws IOException {
+        if (unsynced) {
+            unsynced = false;
+            log.force(false);
+        }
+    }
+
+    /**
+     * Write the snapshot and empty the log. The snapshot is on disk before
+     * the log is truncated; replaying a log that is older than the snapshot
+     * is harmless, since edits set absolute values.
+     * @throws IOException on error
+     */
+    synchronized void compact() throws IOException {
+        compacting = false;
+        Utils.writeAtomically(absSnapshot, writeSnapshot(), true);
+        log.truncate(0);
+        log.force(true);
+        unsynced = false;
+        LOGGER.info("compacted edits={} logged={}", edits.size(), logged);
+        logged = 0;
+    }
+
+    /**
+     * Sync, compact and close the log.
+     */
+    synchronized void close() {
+        if (!log.isOpen()) {
+            return;
+        }
+        try {
+            compact();
+            log.close();
+        }
+        catch (final IOException e) {
+            LOGGER.error("closing journal failed", e);
+        }
+        background.shutdown();
+    }
+
+    /**
+     * Compact on the background thread, unless already scheduled.
+     */
+    private synchronized void scheduleCompaction() {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        background.execute(() -> {
+            try {
+                compact();
+            }
+            catch (final IOException e) {
+                LOGGER.error("compacting journal failed", e);
+            }
+        });
+    }
+
+    /**
+     * Sync, logging errors.
+     */
+    private void syncQuietly() {
+        try {
+            sync();
+        }
+        catch (final IOException e) {
+            LOGGER.error("syncing journal failed", e);
+        }
+    }
+
+    /**
+     * Remember an edit as the latest of its id and key.
+     * @param edit edit
+     */
+    private void put(final Edit edit) {
+        final String k = edit.id + '\t' + edit.key;
+        edits.remove(k);
+        edits.put(k, edit);
+    }
+
+    /**
+     * Read the log. A torn last line, left by a crash while appending, is cut
+     * off, so that the next edit starts a line of its own.
+     * @throws IOException on error
+     */
+    private void readLog() throws IOException {
+        if (!Files.exists(absLog)) {
+            return;
+        }
+        final byte[] bytes = Files.readAllBytes(absLog);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        if (end < bytes.length) {
+            LOGGER.warn("cut torn journal line={}", new String(bytes, end, bytes.length - end, StandardCharsets.UTF_8));
+            try (FileChannel fc = FileChannel.open(absLog, StandardOpenOption.WRITE)) {
+                fc.truncate(end);
+                fc.force(false);
+            }
+        }
+        for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+            final Edit edit = Edit.fromLine(line);
+            if (edit == null) {
+                if (!line.isEmpty()) {
+                    LOGGER.warn("skipped journal line={}", line);
+                }
+                continue;
+            }
+            put(edit);
+            logged++;
+        }
+    }
+
+    /**
+     * Read the snapshot.
+     * @throws IOException on error
+     */
+    private void readSnapshot() throws IOException {
+        if (!Files.exists(absSnapshot)) {
+            return;
+        }
+        try (InputStream is = Files.newInputStream(absSnapshot)) {
+            final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && EDIT.equals(reader.getLocalName())) {
+                    put(new Edit(Long.parseLong(reader.getAttributeValue(null, TIME)), reader.getAttributeValue(null, ID),
+                            reader.getAttributeValue(null, KEY), reader.getElementText()));
+                }
+            }
+            reader.close();
+        }
+        catch (final XMLStreamException | NumberFormatException e) {
+            throw new IOException("Corrupt journal snapshot: " + absSnapshot, e);
+        }
+    }
+
+    /**
+     * Write the latest edits as snapshot.
+     * @return snapshot XML
+     * @throws IOException on error
+     */
+    private byte[] writeSnapshot() throws IOException {
+        final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        try {
+            final XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                    .createXMLStreamWriter(ret, StandardCharsets.UTF_8.name());
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement("journal");
+            for (Edit edit : edits.values()) {
+                writer.writeCharacters("\n  ");
+                writer.writeStartElement(EDIT);
+                writer.writeAttribute(TIME, Long.toString(edit.time));
+                writer.writeAttribute(ID, edit.id);
+                writer.writeAttribute(KEY, edit.key);
+                writer.writeCharacters(edit.value);
+                writer.writeEndElement();
+            }
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeEndDocument();
+            writer.close();
+        }
+        catch (final XMLStreamException e) {
+            throw new IOException(e);
+        }
+        return ret.toByteArray();
+    }
+
+    /**
+     * An edit: an attribute of an element set to a value.
+     */
+    private static final class Edit {
+        /** Time of the edit. */
+        private final long time;
+
+        /** Id of the element. */
+        private final String id;
+
+        /** Attribute. */
+        private final String key;
+
+        /** Value. */
+        private final String value;
+
+        /**
+         * Constructor.
+         * @param aTime time of the edit
+         * @param anId id of the element
+         * @param aKey attribute
+         * @param aValue value
+         */
+        Edit(final long aTime, final String anId, final String aKey, final String aValue) {
+            time = aTime;
+            id = anId;
+            key = aKey;
+            value = aValue;
+        }
+
+        /**
+         * Format as log line.
+         * @return line with line feed
+         */
+        String toLine() {
+            return time + "\t" + escape(id) + "\t" + escape(key) + "\t" + escape(value) + "\n";
+        }
+
+        /**
+         * Parse a log line.
+         * @param line line without line feed
+         * @return edit or null, if the line is malformed
+         */
+        static Edit fromLine(final String line) {
+            final String[] fields = line.split("\t", -1);
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Edit(Long.parseLong(fields[0]), unescape(fields[1]), unescape(fields[2]), unescape(fields[3]));
+            }
+            catch (final NumberFormatException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Escape backslash, tab and line breaks.
+         * @param str string
+         * @return escaped string
+         */
+        private static String escape(final String str) {
+            return str.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        /**
+         * Undo {@link #escape}.
+         * @param str escaped string
+         * @return string
+         */
+        private static String unescape(final String str) {
+            final StringBuilder ret = new StringBuilder(str.length());
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c == '\\') {
+                    c = str.charAt(++i);
+                    if (c == 't') {
+                        c = '\t';
+                    }
+                    else if (c == 'n') {
+                        c = '\n';
+                    }
+                    else if (c == 'r') {
+                        c = '\r';
+                    }
+                }
+                ret.append(c);
+            }
+            return ret.toString();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package miju.rpg.ugmt;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the server's metrics, scraped in the Prometheus text format.
+ * A metric is named by its family and label pairs, e.g.
+ * <em>ugmt_request_seconds</em> with <em>plugin</em>, <em>chars</em>, and
+ * created on first use. Durations are recorded into {@link Histogram}s and
+ * exported in seconds as summaries; hot paths should hold on to their
+ * histogram rather than look it up each time.
+ */
+public final class Metrics {
+    /** Request latency by plugin. */
+    public static final String REQUEST = "ugmt_request_seconds";
+
+    /** XSLT transform time. */
+    public static final String XSLT = "ugmt_xslt_seconds";
+
+    /** XPath evaluation time. */
+    public static final String XPATH = "ugmt_xpath_seconds";
+
+    /** Image encode time by format. */
+    public static final String IMAGE_ENCODE = "ugmt_image_encode_seconds";
+
+    /** Cache hits by cache. */
+    public static final String CACHE_HITS = "ugmt_cache_hits_total";
+
+    /** Cache misses by cache. */
+    public static final String CACHE_MISSES = "ugmt_cache_misses_total";
+
+    /** Connected web-sockets by plugin. */
+    public static final String WEBSOCKETS = "ugmt_websocket_clients";
+
+    /** Pushes waiting or being sent. */
+    public static final String PUSH_QUEUE = "ugmt_push_queue_depth";
+
+    /** Quantiles exported for histograms. */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /** Families by name, sorted for a stable output. */
+    private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    /**
+     * Hide Constructor.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Get a histogram of durations.
+     * @param name family name, ending in <em>_seconds</em>
+     * @param help description of the family
+     * @param labels label names and values, alternating
+     * @return histogram
+     */
+    public static Histogram histogram(final String name, final String help, final String... labels) {
+        return (Histogram) family(name, "summary", help).metrics.computeIfAbsent(labels(labels), k -> new Histogram());
+    }
+
+    /**
+     * Get a counter.
+     * @param name family name, ending in <em>_total</em>
+     * @param help description of the family
+     * @param labels label names and values, alternating
+     * @return counter
+     */
+    public static LongAdder counter(final String name, final String help, final String... labels) {
+        return (LongAdder) family(name, "counter", help).metrics.computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    /**
+     * Get the hit counter of a cache.
+     * @param cache cache name
+     * @return counter
+     */
+    public static LongAdder hits(final String cache) {
+        return counter(CACHE_HITS, "Cache hits by cache.", "cache", cache);
+    }
+
+    /**
+     * Get the miss counter of a cache.
+     * @param cache cache name
+     * @return counter
+     */
+    public static LongAdder misses(final String cache) {
+        return counter(CACHE_MISSES, "Cache misses by cache.", "cache", cache);
+    }
+
+    /**
+     * Register a gauge, replacing an earlier one with the same labels.
+     * @param name family name
+     * @param help description of the family
+     * @param value read on scraping
+     * @param labels label names and values, alternating
+     */
+    public static void gauge(final String name, final String help, final LongSupplier value, final String... labels) {
+        family(name, "gauge", help).metrics.put(labels(labels), value);
+    }
+
+    /**
+     * Write all metrics.
+     * @return metrics in the Prometheus text format 0.0.4
+     */
+    public static String scrape() {
+        final StringBuilder ret = new StringBuilder();
+        for (Family family : FAMILIES.values()) {
+            family.write(ret);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Get or create a family.
+     * @param name name
+     * @param type Prometheus type
+     * @param help description
+     * @return family
+     */
+    private static Family family(final String name, final String type, final String help) {
+        final Family ret = FAMILIES.computeIfAbsent(name, k -> new Family(name, type, help));
+        if (!ret.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + ret.type);
+        }
+        return ret;
+    }
+
+    /**
+     * Format label pairs.
+     * @param labels label names and values, alternating
+     * @return labels as within braces, without them
+     */
+    private static String labels(final String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be pairs");
+        }
+        final StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                ret.append(',');
+            }
+            ret.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Metrics sharing name, type and description.
+     */
+    private static final class Family {
+        /** Name. */
+        private final String name;
+
+        /** Prometheus type. */
+        private final String type;
+
+        /** Description. */
+        private final String help;
+
+        /** Metrics by labels. */
+        private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+        /**
+         * Constructor.
+         * @param aName name
+         * @param aType Prometheus type
+         * @param aHelp description
+         */
+        Family(final String aName, final String aType, final String aHelp) {
+            name = aName;
+            type = aType;
+            help = aHelp;
+        }
+
+        /**
+         * Write the family.
+         * @param out output
+         */
+        void write(final StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (Map.Entry<String, Object> entry : new TreeMap<>(metrics).entrySet()) {
+                final String labels = entry.getKey();
+                final Object metric = entry.getValue();
+                if (metric instanceof Histogram) {
+                    final Histogram histogram = (Histogram) metric;
+                    final String sep = labels.isEmpty() ? "" : labels + ",";
+                    for (double q : QUANTILES) {
+                        sample(out, name, sep + "quantile=\"" + q + "\"", seconds(histogram.percentile(q)));
+                    }
+                    sample(out, name + "_sum", labels, seconds(histogram.sum()));
+                    sample(out, name + "_count", labels, Long.toString(histogram.count()));
+                }
+                else if (metric instanceof LongAdder) {
+                    sample(out, name, labels, Long.toString(((LongAdder) metric).sum()));
+                }
+                else {
+                    sample(out, name, labels, Long.toString(((LongSupplier) metric).getAsLong()));
+                }
+            }
+        }
+
+        /**
+         * Write a sample line.
+         * @param out output
+         * @param sample sample name
+         * @param labels labels or empty
+         * @param value value
+         */
+        private static void sample(final StringBuilder out, final String sample, final String labels, final String value) {
+            out.append(sample);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+
+        /**
+         * Format nanoseconds.
+         * @param nanos nanoseconds
+         * @return seconds
+         */
+        private static String seconds(final long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+    }
+}
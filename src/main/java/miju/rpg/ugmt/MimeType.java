@@ -4,20 +4,26 @@ package miju.rpg.ugmt;
  * Simple Mime type implementation.
  */
 public enum MimeType {
-    HTML(".html", "text/html"),
-    TXT(".txt", "text/text"),
-    XML(".xml", "text/xml"),
-    XSL(".xsl", "application/xml"),
-    JS(".js", "text/javascript"),
-    CSS(".css", "text/css"),
-    PNG(".png", "image/png"),
-    ICO(".ico", "image/png"),
-    JPG(".jpg", "image/jpeg"),
-    GIF(".gif", "image/gif"),
-    PDF(".pdf", "application/pdf"),
-    WAV(".wav", "audio/x-wav"),
-    OGG(".ogg", "audio/ogg"),
-    SVG(".svg", "image/svg+xml");
+    HTML(".html", "text/html", MimeType.REVALIDATE, true),
+    TXT(".txt", "text/text", MimeType.REVALIDATE, true),
+    XML(".xml", "text/xml", MimeType.REVALIDATE, true),
+    XSL(".xsl", "application/xml", MimeType.REVALIDATE, true),
+    JS(".js", "text/javascript", MimeType.REVALIDATE, true),
+    CSS(".css", "text/css", MimeType.REVALIDATE, true),
+    PNG(".png", "image/png", MimeType.DAY, false),
+    ICO(".ico", "image/png", MimeType.DAY, false),
+    JPG(".jpg", "image/jpeg", MimeType.DAY, false),
+    GIF(".gif", "image/gif", MimeType.DAY, false),
+    PDF(".pdf", "application/pdf", MimeType.DAY, false),
+    WAV(".wav", "audio/x-wav", MimeType.DAY, false),
+    OGG(".ogg", "audio/ogg", MimeType.DAY, false),
+    SVG(".svg", "image/svg+xml", MimeType.DAY, true);
+
+    /** Cache policy: always ask the server, which may answer 304. */
+    public static final String REVALIDATE = "no-cache";
+
+    /** Cache policy: fresh for a day. */
+    public static final String DAY = "max-age=86400";
 
     /** File extension. */
     private final String extension;
@@ -25,14 +31,39 @@ public enum MimeType {
     /** HTTP Mime Type. */
     private final String mimeType;
 
+    /** Default Cache-Control. */
+    private final String cacheControl;
+
+    /** Worth compressing? */
+    private final boolean compressible;
+
     /**
      * Constructor.
      * @param anExtension file extension
      * @param aMimeType mime type
+     * @param aCacheControl default Cache-Control value
+     * @param isCompressible worth compressing
      */
-    MimeType(final String anExtension, final String aMimeType) {
+    MimeType(final String anExtension, final String aMimeType, final String aCacheControl, final boolean isCompressible) {
         this.extension = anExtension;
         this.mimeType = aMimeType;
+        this.cacheControl = aCacheControl;
+        this.compressible = isCompressible;
+    }
+
+    /**
+     * Find the mime type of a content-type, which may carry parameters.
+     * @param contentType content-type
+     * @return mime type or null
+     */
+    public static MimeType forContentType(final String contentType) {
+        final String bare = contentType.split(";")[0].trim();
+        for (MimeType type : values()) {
+            if (type.mimeType.equals(bare)) {
+                return type;
+            }
+        }
+        return null;
     }
 
     /** Getter. @return extension */
@@ -44,4 +75,18 @@ public enum MimeType {
     public String getMimeType() {
         return mimeType;
     }
+
+    /** Getter. @return not compressed already */
+    public boolean isCompressible() {
+        return compressible;
+    }
+
+    /**
+     * Cache-Control value, configurable with the property
+     * <b>CACHE_</b><em>name</em>, e.g. CACHE_PNG.
+     * @return cache policy
+     */
+    public String getCacheControl() {
+        return System.getProperty("CACHE_" + name(), cacheControl);
+    }
 }
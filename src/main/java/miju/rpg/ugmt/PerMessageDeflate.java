@@ -0,0 +1,190 @@
+package miju.rpg.ugmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate web-socket extension (RFC 7692). Whether it is used
+ * and whether the server keeps its compression context between messages is
+ * set per plugin by <b>WEBSOCKET_DEFLATE_&lt;PLUGIN&gt;</b>: <em>off</em>,
+ * <em>no_context_takeover</em> or <em>context_takeover</em> (default). Keeping
+ * the context compresses repetitive pushes best, at the cost of a deflater
+ * per socket. Only the default window size is supported, so offers limiting
+ * the server window are declined.
+ */
+final class PerMessageDeflate {
+    /** Extension name. */
+    static final String NAME = "permessage-deflate";
+
+    /** Header field. */
+    static final String EXTENSIONS = "Sec-WebSocket-Extensions";
+
+    /** Deflate tail removed from each message. */
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    /** Smaller messages are sent uncompressed. */
+    private static final int MIN_SIZE = 32;
+
+    /** Server keeps its context. */
+    private final boolean serverTakeover;
+
+    /** Client keeps its context. */
+    private final boolean clientTakeover;
+
+    /** Compressor. */
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    /** Decompressor. */
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * Constructor.
+     * @param aServerTakeover server keeps its context
+     * @param aClientTakeover client keeps its context
+     */
+    private PerMessageDeflate(final boolean aServerTakeover, final boolean aClientTakeover) {
+        serverTakeover = aServerTakeover;
+        clientTakeover = aClientTakeover;
+    }
+
+    /**
+     * Accept the first acceptable offer of the client.
+     * @param plugin plugin of the socket
+     * @param offers <em>Sec-WebSocket-Extensions</em> of the request or null
+     * @return extension or null, if not used
+     */
+    static PerMessageDeflate negotiate(final String plugin, final String offers) {
+        final String mode = System.getProperty("WEBSOCKET_DEFLATE_" + plugin.toUpperCase(Locale.ROOT), "context_takeover");
+        if (offers == null || "off".equals(mode)) {
+            return null;
+        }
+        for (String offer : offers.split(",")) {
+            final String[] params = offer.trim().split(";");
+            if (!NAME.equals(params[0].trim())) {
+                continue;
+            }
+            boolean acceptable = true;
+            boolean serverTakeover = !"no_context_takeover".equals(mode);
+            boolean clientTakeover = true;
+            for (int i = 1; i < params.length; i++) {
+                final String param = params[i].trim();
+                if ("server_no_context_takeover".equals(param)) {
+                    serverTakeover = false;
+                }
+                else if ("client_no_context_takeover".equals(param)) {
+                    clientTakeover = false;
+                }
+                else if (param.startsWith("server_max_window_bits")) {
+                    acceptable = param.endsWith("=15") || param.endsWith("=\"15\"");
+                }
+                else if (!param.startsWith("client_max_window_bits")) {
+                    acceptable = false;
+                }
+            }
+            if (acceptable) {
+                return new PerMessageDeflate(serverTakeover, clientTakeover);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Response to the offer.
+     * @return field value of <em>Sec-WebSocket-Extensions</em>
+     */
+    String getResponse() {
+        final StringBuilder ret = new StringBuilder(NAME);
+        if (!serverTakeover) {
+            ret.append("; server_no_context_takeover");
+        }
+        if (!clientTakeover) {
+            ret.append("; client_no_context_takeover");
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Check whether a message is worth compressing.
+     * @param payload message
+     * @return compress it
+     */
+    boolean accepts(final byte[] payload) {
+        return payload.length >= MIN_SIZE;
+    }
+
+    /**
+     * Compress a message. Calls must be serialized by the caller.
+     * @param payload message
+     * @return compressed message
+     */
+    byte[] compress(final byte[] payload) {
+        if (!serverTakeover) {
+            deflater.reset();
+        }
+        deflater.setInput(payload);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 16);
+        final byte[] buf = new byte[4096];
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.write(buf, 0, n);
+        }
+        while (n == buf.length);
+        final byte[] ret = out.toByteArray();
+        final byte[] stripped = new byte[ret.length - TAIL.length];
+        System.arraycopy(ret, 0, stripped, 0, stripped.length);
+        return stripped;
+    }
+
+    /**
+     * Decompress a message. Calls must be serialized by the caller.
+     * @param payload compressed message
+     * @param max largest message accepted
+     * @return message
+     * @throws IOException on corrupt or too large messages
+     */
+    byte[] decompress(final byte[] payload, final int max) throws IOException {
+        if (!clientTakeover) {
+            inflater.reset();
+        }
+        final byte[] input = new byte[payload.length + TAIL.length];
+        System.arraycopy(payload, 0, input, 0, payload.length);
+        System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+        inflater.setInput(input);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 3);
+        final byte[] buf = new byte[4096];
+        try {
+            while (!inflater.needsInput()) {
+                final int n = inflater.inflate(buf);
+                out.write(buf, 0, n);
+                if (out.size() > max) {
+                    throw new IOException("Message too big");
+                }
+                if (inflater.finished()) {
+                    // Client ended its stream, the next message starts a new one
+                    inflater.reset();
+                    break;
+                }
+                if (n == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Dictionary needed");
+                }
+            }
+        }
+        catch (final DataFormatException e) {
+            throw new IOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Free the native resources.
+     */
+    void end() {
+        deflater.end();
+        inflater.end();
+    }
+}
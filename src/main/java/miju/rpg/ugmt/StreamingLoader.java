@@ -0,0 +1,194 @@
+package miju.rpg.ugmt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.TypeInfoProvider;
+import javax.xml.validation.ValidatorHandler;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming loader of data files. The file is validated while it is read, as
+ * {@link XmlValidation} says, and each top-level element is built straight
+ * into the target document and handed over when complete. No document of the
+ * whole file is built, so loading needs the merged document and one top-level
+ * element at a time. Like the DOM loader, validation drops white space in
+ * element-only content; unlike it, comments are dropped too.
+ * Selected by <b>DATA_LOADER</b>=stream.
+ */
+final class StreamingLoader extends DefaultHandler {
+    /** Receives the elements of a file. */
+    interface Listener {
+        /**
+         * The root of the file, without children and not appended.
+         * @param root root element
+         */
+        void root(Element root);
+
+        /**
+         * A complete top-level element, not appended.
+         * @param elem element
+         */
+        void child(Element elem);
+    }
+
+    /** Parsers. */
+    private static final SAXParserFactory PARSER_FACTORY = XmlParsers.newSaxFactory();
+
+    /** Target document. */
+    private final Document doc;
+
+    /** Receiver. */
+    private final Listener listener;
+
+    /** Types of the validated elements or null. */
+    private final TypeInfoProvider types;
+
+    /** Namespace declarations of the next element, prefix and URI alternating. */
+    private final List<String> prefixes = new ArrayList<>();
+
+    /** Pending text. */
+    private final StringBuilder text = new StringBuilder();
+
+    /** Element being built below the root or null. */
+    private Element current;
+
+    /** Depth of the open elements. */
+    private int depth;
+
+    /**
+     * Constructor.
+     * @param aDoc target document
+     * @param aListener receiver
+     * @param aTypes types of the validated elements or null
+     */
+    private StreamingLoader(final Document aDoc, final Listener aListener, final TypeInfoProvider aTypes) {
+        doc = aDoc;
+        listener = aListener;
+        types = aTypes;
+    }
+
+    /**
+     * Load a file.
+     * @param absPath data file
+     * @param doc document to build the elements in
+     * @param listener receiver of the elements
+     * @throws SAXException on error
+     * @throws IOException on error
+     */
+    static void load(final Path absPath, final Document doc, final Listener listener) throws SAXException, IOException {
+        final Schema schema = XmlValidation.schemaForParse(absPath);
+        final ContentHandler handler;
+        if (schema == null) {
+            handler = new StreamingLoader(doc, listener, null);
+        }
+        else {
+            final ValidatorHandler validator = schema.newValidatorHandler();
+            validator.setErrorHandler(new XmlErrorHandler());
+            validator.setContentHandler(new StreamingLoader(doc, listener, validator.getTypeInfoProvider()));
+            handler = validator;
+        }
+        final XMLReader reader;
+        try {
+            synchronized (PARSER_FACTORY) {
+                reader = PARSER_FACTORY.newSAXParser().getXMLReader();
+            }
+        }
+        catch (final ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+        reader.setContentHandler(handler);
+        reader.setErrorHandler(new XmlErrorHandler());
+        reader.parse(new InputSource(absPath.toUri().toString()));
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) {
+        prefixes.add(prefix);
+        prefixes.add(uri);
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts) {
+        flushText();
+        final Element elem = doc.createElementNS(uri.isEmpty() ? null : uri, qName);
+        for (int i = 0; i < prefixes.size(); i += 2) {
+            final String prefix = prefixes.get(i);
+            elem.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix,
+                    prefixes.get(i + 1));
+        }
+        prefixes.clear();
+        for (int i = 0; i < atts.getLength(); i++) {
+            final String ns = atts.getURI(i).isEmpty() ? null : atts.getURI(i);
+            elem.setAttributeNS(ns, atts.getQName(i), atts.getValue(i));
+            if (types != null && types.isIdAttribute(i)) {
+                elem.setIdAttributeNS(ns, atts.getLocalName(i), true);
+            }
+        }
+        if (depth == 0) {
+            listener.root(elem);
+        }
+        else if (depth > 1) {
+            current.appendChild(elem);
+        }
+        if (depth > 0) {
+            current = elem;
+        }
+        depth++;
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) {
+        flushText();
+        depth--;
+        if (depth == 1) {
+            listener.child(current);
+            current = null;
+        }
+        else if (depth > 1) {
+            current = (Element) current.getParentNode();
+        }
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) {
+        if (current != null) {
+            text.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data) {
+        if (current != null) {
+            flushText();
+            current.appendChild(doc.createProcessingInstruction(target, data));
+        }
+    }
+
+    /**
+     * Append the pending text to the current element.
+     */
+    private void flushText() {
+        if (text.length() > 0) {
+            final Node node = doc.createTextNode(text.toString());
+            current.appendChild(node);
+            text.setLength(0);
+        }
+    }
+}
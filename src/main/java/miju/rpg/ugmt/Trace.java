@@ -0,0 +1,283 @@
+package miju.rpg.ugmt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lightweight request tracing. A request thread {@link #begin}s a trace, which
+ * is sampled at the rate <b>TRACE_SAMPLE</b> (default 0.01); code on the way
+ * opens {@link #span}s in try-with-resources blocks. Outside of a sampled
+ * trace a span is a shared no-op, costing a thread-local lookup. Finished
+ * traces are folded into a tree of span paths by the name of their root,
+ * which the GM page <em>/ugmt.traces</em> draws as a flame graph.
+ * A span is held for its scope only and never referenced in the block, so
+ * classes opening spans suppress javac's "try" lint.
+ */
+public final class Trace {
+    /** Spans kept per trace, further ones are dropped into their parent. */
+    private static final int MAX_SPANS = 10000;
+
+    /** Span of the thread or null. */
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+
+    /** Folded traces by root name. */
+    private static final Map<String, Node> ROOTS = new LinkedHashMap<>();
+
+    /** Fraction of traces sampled. */
+    private static volatile double sampleRate = Double.parseDouble(System.getProperty("TRACE_SAMPLE", "0.01"));
+
+    /**
+     * Hide Constructor.
+     */
+    private Trace() {
+    }
+
+    /**
+     * Begin a trace, if sampled. Within a trace a child span is opened instead.
+     * @param name name of the root span, e.g. the plugin
+     * @return span to close
+     */
+    public static Span begin(final String name) {
+        if (CURRENT.get() != null) {
+            return span(name);
+        }
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return Span.NOOP;
+        }
+        final Span ret = new Span(name, null);
+        CURRENT.set(ret);
+        return ret;
+    }
+
+    /**
+     * Open a child span of the thread's current span.
+     * @param name name
+     * @return span to close
+     */
+    public static Span span(final String name) {
+        final Span parent = CURRENT.get();
+        if (parent == null || parent.root.spans >= MAX_SPANS) {
+            return Span.NOOP;
+        }
+        final Span ret = new Span(name, parent);
+        CURRENT.set(ret);
+        return ret;
+    }
+
+    /**
+     * Setter.
+     * @param rate fraction of traces sampled, 0 to 1
+     */
+    public static void setSampleRate(final double rate) {
+        sampleRate = Math.max(0, Math.min(1, rate));
+    }
+
+    /**
+     * Getter.
+     * @return fraction of traces sampled
+     */
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get a copy of the folded traces.
+     * @return root nodes by name
+     */
+    public static synchronized List<Node> getRoots() {
+        final List<Node> ret = new ArrayList<>();
+        for (Node node : ROOTS.values()) {
+            ret.add(node.copy());
+        }
+        return ret;
+    }
+
+    /**
+     * Forget the folded traces.
+     */
+    public static synchronized void reset() {
+        ROOTS.clear();
+    }
+
+    /**
+     * Fold a finished trace.
+     * @param root root span
+     */
+    private static synchronized void fold(final Span root) {
+        ROOTS.computeIfAbsent(root.name, Node::new).add(root);
+    }
+
+    /**
+     * A timed section of a trace.
+     */
+    public static final class Span implements AutoCloseable {
+        /** Span outside of sampled traces. */
+        static final Span NOOP = new Span();
+
+        /** Name. */
+        private final String name;
+
+        /** Parent or null for the root. */
+        private final Span parent;
+
+        /** Root. */
+        private final Span root;
+
+        /** Start. */
+        private final long start;
+
+        /** Spans in the trace, counted at the root. */
+        private int spans;
+
+        /** Duration. */
+        private long nanos;
+
+        /** Children or null. */
+        private List<Span> children;
+
+        /**
+         * Constructor of the no-op span.
+         */
+        private Span() {
+            name = null;
+            parent = null;
+            root = null;
+            start = 0;
+        }
+
+        /**
+         * Constructor.
+         * @param aName name
+         * @param aParent parent or null
+         */
+        private Span(final String aName, final Span aParent) {
+            name = aName;
+            parent = aParent;
+            root = aParent == null ? this : aParent.root;
+            root.spans++;
+            if (parent != null) {
+                if (parent.children == null) {
+                    parent.children = new ArrayList<>();
+                }
+                parent.children.add(this);
+            }
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (this == NOOP) {
+                return;
+            }
+            nanos = System.nanoTime() - start;
+            if (parent != null) {
+                CURRENT.set(parent);
+                return;
+            }
+            CURRENT.remove();
+            fold(this);
+        }
+    }
+
+    /**
+     * Spans of all traces with the same path of names.
+     */
+    public static final class Node {
+        /** Name. */
+        private final String name;
+
+        /** Children by name. */
+        private final Map<String, Node> children = new LinkedHashMap<>();
+
+        /** Total time. */
+        private long nanos;
+
+        /** Number of spans. */
+        private long count;
+
+        /**
+         * Constructor.
+         * @param aName name
+         */
+        Node(final String aName) {
+            name = aName;
+        }
+
+        /**
+         * Getter.
+         * @return name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Getter.
+         * @return total time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Getter.
+         * @return number of spans
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Getter.
+         * @return time not spent in children in nanoseconds
+         */
+        public long getSelfNanos() {
+            long ret = nanos;
+            for (Node child : children.values()) {
+                ret -= child.nanos;
+            }
+            return ret;
+        }
+
+        /**
+         * Getter.
+         * @return children, slowest first
+         */
+        public List<Node> getChildren() {
+            final List<Node> ret = new ArrayList<>(children.values());
+            ret.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+            return ret;
+        }
+
+        /**
+         * Fold a span and its children.
+         * @param span span
+         */
+        private void add(final Span span) {
+            nanos += span.nanos;
+            count++;
+            if (span.children != null) {
+                for (Span child : span.children) {
+                    children.computeIfAbsent(child.name, Node::new).add(child);
+                }
+            }
+        }
+
+        /**
+         * Deep copy.
+         * @return copy
+         */
+        private Node copy() {
+            final Node ret = new Node(name);
+            ret.nanos = nanos;
+            ret.count = count;
+            for (Node child : children.values()) {
+                ret.children.put(child.name, child.copy());
+            }
+            return ret;
+        }
+    }
+}
@@ -1,8 +1,21 @@
 package miju.rpg.ugmt;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -105,4 +118,90 @@ public final class Utils {
         }
     }
 
+    /**
+     * Write a file such that readers never see it half written: the bytes go
+     * to a temporary sibling first, which is then renamed onto the target.
+     * @param absPath file to write
+     * @param bytes content
+     * @throws IOException on error
+     */
+    public static void writeAtomically(final Path absPath, final byte[] bytes) throws IOException {
+        writeAtomically(absPath, bytes, false);
+    }
+
+    /**
+     * Write a file atomically, see {@link #writeAtomically(Path, byte[])}.
+     * @param absPath file to write
+     * @param bytes content
+     * @param sync force the content and the rename to disk
+     * @throws IOException on error
+     */
+    public static void writeAtomically(final Path absPath, final byte[] bytes, final boolean sync) throws IOException {
+        final Path absDir = absPath.toAbsolutePath().getParent();
+        Files.createDirectories(absDir);
+        final Path tmp = Files.createTempFile(absDir, "." + absPath.getFileName(), ".tmp");
+        try {
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                final ByteBuffer buf = ByteBuffer.wrap(bytes);
+                while (buf.hasRemaining()) {
+                    fc.write(buf);
+                }
+                if (sync) {
+                    fc.force(true);
+                }
+            }
+            try {
+                Files.move(tmp, absPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tmp, absPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (sync) {
+                syncDirectory(absDir);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Force a directory, i.e. renames within it, to disk. Not all platforms
+     * can, which is ignored.
+     * @param absDir directory
+     */
+    public static void syncDirectory(final Path absDir) {
+        try (FileChannel fc = FileChannel.open(absDir, StandardOpenOption.READ)) {
+            fc.force(true);
+        }
+        catch (final IOException e) {
+            LOGGER.debug("dir={} not synced, e={}", absDir, e.toString());
+        }
+    }
+
+    /**
+     * Read the dimensions of an image without decoding it.
+     * @param absPath image file
+     * @return width and height
+     * @throws IOException if no reader is available
+     */
+    public static int[] readImageSize(final Path absPath) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(absPath.toFile())) {
+            if (iis == null) {
+                throw new IOException("Cannot open " + absPath);
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + absPath);
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0) };
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
 }
@@ -0,0 +1,441 @@
+package miju.rpg.ugmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side of a web-socket (RFC 6455) after the handshake. Messages are
+ * read on a thread of their own and dispatched to the plugin's
+ * {@link AbstractMain#onMessage}; fragmented messages are reassembled and
+ * control frames answered. An idle socket is pinged every
+ * <b>WEBSOCKET_PING_SECONDS</b> (default 30) and closed, if the client stays
+ * silent for another interval. Writing is synchronized, so pushes and
+ * replies don't interleave. Messages are compressed, if permessage-deflate
+ * was negotiated.
+ */
+public final class WebSocket implements Runnable {
+    /** Close code. */
+    static final int NORMAL = 1000;
+
+    /** Close code. */
+    static final int PROTOCOL_ERROR = 1002;
+
+    /** Close code. */
+    static final int UNSUPPORTED = 1003;
+
+    /** Close code. */
+    static final int INVALID_DATA = 1007;
+
+    /** Close code. */
+    static final int TOO_BIG = 1009;
+
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebSocket.class);
+
+    /** First reserved bit, marks compressed messages. */
+    private static final int RSV1 = 0x40;
+
+    /** Opcode. */
+    private static final int CONTINUATION = 0x0;
+
+    /** Opcode. */
+    private static final int TEXT = 0x1;
+
+    /** Opcode. */
+    private static final int BINARY = 0x2;
+
+    /** Opcode. */
+    private static final int CLOSE = 0x8;
+
+    /** Opcode. */
+    private static final int PING = 0x9;
+
+    /** Opcode. */
+    private static final int PONG = 0xA;
+
+    /** Largest message accepted. */
+    private static final int MAX_MESSAGE = Integer.getInteger("WEBSOCKET_MAX_MESSAGE", 1 << 20);
+
+    /** Socket. */
+    private final Socket socket;
+
+    /** Stream to read frames from. */
+    private final InputStream is;
+
+    /** Stream to write frames to. */
+    private final OutputStream os;
+
+    /** Plugin the socket is registered for. */
+    private final String plugin;
+
+    /** GM's socket? */
+    private final boolean gm;
+
+    /** Compression extension or null. */
+    private final PerMessageDeflate deflate;
+
+    /** Close frame sent. */
+    private volatile boolean closing;
+
+    /** Ping sent and not yet answered by any frame. */
+    private boolean pinged;
+
+    /**
+     * Constructor.
+     * @param aSocket socket after the handshake
+     * @param anIs stream to read from, which may have buffered beyond the handshake
+     * @param aPlugin plugin to dispatch to
+     * @param aGm GM's socket?
+     * @param aDeflate negotiated compression or null
+     * @throws IOException on error
+     */
+    WebSocket(final Socket aSocket, final InputStream anIs, final String aPlugin, final boolean aGm,
+            final PerMessageDeflate aDeflate) throws IOException {
+        socket = aSocket;
+        is = anIs;
+        os = aSocket.getOutputStream();
+        plugin = aPlugin;
+        gm = aGm;
+        deflate = aDeflate;
+        socket.setSoTimeout(1000 * Integer.getInteger("WEBSOCKET_PING_SECONDS", 30));
+    }
+
+    /**
+     * Getter.
+     * @return plugin
+     */
+    public String getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * Send a text message.
+     * @param text message
+     * @throws IOException on error
+     */
+    public void send(final String text) throws IOException {
+        final byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        if (deflate != null && deflate.accepts(payload)) {
+            synchronized (this) {
+                if (socket.isClosed()) {
+                    // The deflater is gone with the socket
+                    throw new IOException("Socket closed");
+                }
+                os.write(frame(TEXT | RSV1, deflate.compress(payload)));
+                os.flush();
+            }
+            return;
+        }
+        sendFrame(TEXT, payload);
+    }
+
+    /**
+     * Start the close handshake.
+     * @param code close code
+     * @param reason reason, short
+     */
+    public void close(final int code, final String reason) {
+        if (closing) {
+            return;
+        }
+        closing = true;
+        final byte[] utf = reason.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer payload = ByteBuffer.allocate(2 + utf.length);
+        payload.putShort((short) code).put(utf);
+        try {
+            sendFrame(CLOSE, payload.array());
+        }
+        catch (final IOException e) {
+            LOGGER.debug("close failed", e);
+            shutdown();
+        }
+    }
+
+    /**
+     * Read loop.
+     */
+    @Override
+    public void run() {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int messageOpcode = -1;
+        boolean messageCompressed = false;
+        try {
+            while (!socket.isClosed()) {
+                final int b0 = readFrameStart();
+                final int b1 = readByte();
+                final boolean fin = (b0 & 0x80) != 0;
+                final int opcode = b0 & 0x0F;
+                final boolean compressed = (b0 & RSV1) != 0;
+                if ((b0 & 0x30) != 0 || (b1 & 0x80) == 0
+                        || (compressed && (deflate == null || (opcode != TEXT && opcode != BINARY)))) {
+                    // Reserved bits without extension or unmasked client frame
+                    close(PROTOCOL_ERROR, "bad frame");
+                    return;
+                }
+                if ((opcode & CLOSE) != 0 && (!fin || (b1 & 0x7F) > 125)) {
+                    // Control frames are short and never fragmented
+                    close(PROTOCOL_ERROR, "bad control frame");
+                    return;
+                }
+                final byte[] payload = readPayload(b1 & 0x7F);
+                switch (opcode) {
+                case PING:
+                    sendFrame(PONG, payload);
+                    break;
+                case PONG:
+                    break;
+                case CLOSE:
+                    if (!closing) {
+                        // Echo the code
+                        closing = true;
+                        byte[] code = payload;
+                        if (payload.length > 2) {
+                            code = new byte[] {payload[0], payload[1]};
+                        }
+                        sendFrame(CLOSE, code);
+                    }
+                    return;
+                case TEXT:
+                case BINARY:
+                case CONTINUATION:
+                    if ((opcode == CONTINUATION) == (messageOpcode < 0)) {
+                        close(PROTOCOL_ERROR, "bad fragment");
+                        return;
+                    }
+                    if (opcode != CONTINUATION) {
+                        messageOpcode = opcode;
+                        messageCompressed = compressed;
+                    }
+                    if (message.size() + payload.length > MAX_MESSAGE) {
+                        close(TOO_BIG, "message too big");
+                        return;
+                    }
+                    message.write(payload);
+                    if (fin) {
+                        final int type = messageOpcode;
+                        messageOpcode = -1;
+                        byte[] bytes = message.toByteArray();
+                        message.reset();
+                        if (messageCompressed) {
+                            try {
+                                bytes = deflate.decompress(bytes, MAX_MESSAGE);
+                            }
+                            catch (final IOException e) {
+                                close(INVALID_DATA, "bad compression");
+                                return;
+                            }
+                        }
+                        if (type != TEXT) {
+                            close(UNSUPPORTED, "text only");
+                            return;
+                        }
+                        if (!dispatch(bytes)) {
+                            return;
+                        }
+                    }
+                    break;
+                default:
+                    close(PROTOCOL_ERROR, "bad opcode");
+                    return;
+                }
+            }
+        }
+        catch (final EOFException e) {
+            LOGGER.debug("plugin={} socket closed by client", plugin);
+        }
+        catch (final IOException e) {
+            LOGGER.info("plugin={} socket dropped, e={}", plugin, e.toString());
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Decode and dispatch a text message.
+     * @param bytes UTF-8 bytes
+     * @return false, if the message was invalid and the socket closed
+     */
+    private boolean dispatch(final byte[] bytes) {
+        final String text;
+        try {
+            text = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes)).toString();
+        }
+        catch (final CharacterCodingException e) {
+            close(INVALID_DATA, "invalid UTF-8");
+            return false;
+        }
+        try {
+            HttpServer.launch("miju.rpg.ugmt." + plugin + ".Main").onMessage(this, text, gm);
+        }
+        catch (final Exception e) {
+            // The message is wrong, not the socket
+            LOGGER.error("plugin={} message={}", plugin, text, e);
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the first byte of a frame, pinging the client when it has been
+     * silent for too long.
+     * @return first byte
+     * @throws IOException on error or silent client
+     */
+    private int readFrameStart() throws IOException {
+        while (true) {
+            try {
+                final int ret = readByte();
+                pinged = false;
+                return ret;
+            }
+            catch (final SocketTimeoutException e) {
+                if (pinged || closing) {
+                    throw new IOException("No answer from client");
+                }
+                pinged = true;
+                sendFrame(PING, new byte[0]);
+            }
+        }
+    }
+
+    /**
+     * Read length, mask and payload of a client frame.
+     * @param len7 7 bit length
+     * @return unmasked payload
+     * @throws IOException on error
+     */
+    private byte[] readPayload(final int len7) throws IOException {
+        long len = len7;
+        if (len7 == 126) {
+            len = ((long) readByte() << 8) | readByte();
+        }
+        else if (len7 == 127) {
+            len = 0;
+            for (int i = 0; i < 8; i++) {
+                len = (len << 8) | readByte();
+            }
+        }
+        if (len < 0) {
+            close(PROTOCOL_ERROR, "bad length");
+            throw new IOException("Bad frame length: " + len);
+        }
+        if (len > MAX_MESSAGE) {
+            close(TOO_BIG, "frame too big");
+            throw new IOException("Frame too big: " + len);
+        }
+        final byte[] mask = new byte[4];
+        readFully(mask);
+        final byte[] ret = new byte[(int) len];
+        readFully(ret);
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] ^= mask[i & 3];
+        }
+        return ret;
+    }
+
+    /**
+     * Read one byte.
+     * @return byte
+     * @throws IOException on error or end of stream
+     */
+    private int readByte() throws IOException {
+        final int ret = is.read();
+        if (ret < 0) {
+            throw new EOFException();
+        }
+        return ret;
+    }
+
+    /**
+     * Read bytes within a frame; a slow client is waited for one interval.
+     * @param buf buffer to fill
+     * @throws IOException on error, end of stream or stalled client
+     */
+    private void readFully(final byte[] buf) throws IOException {
+        int off = 0;
+        boolean waited = false;
+        while (off < buf.length) {
+            try {
+                final int n = is.read(buf, off, buf.length - off);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                off += n;
+                waited = false;
+            }
+            catch (final SocketTimeoutException e) {
+                if (waited) {
+                    throw new IOException("No answer from client");
+                }
+                waited = true;
+                LOGGER.debug("plugin={} slow frame", plugin);
+            }
+        }
+    }
+
+    /**
+     * Write an unfragmented frame.
+     * @param opcode opcode
+     * @param payload payload
+     * @throws IOException on error
+     */
+    private synchronized void sendFrame(final int opcode, final byte[] payload) throws IOException {
+        os.write(frame(opcode, payload));
+        os.flush();
+    }
+
+    /**
+     * Encode an unmasked, unfragmented frame.
+     * @param opcode opcode, may include reserved bits
+     * @param payload payload
+     * @return frame
+     */
+    static byte[] frame(final int opcode, final byte[] payload) {
+        final ByteBuffer ret;
+        if (payload.length < 126) {
+            ret = ByteBuffer.allocate(2 + payload.length);
+            ret.put((byte) (0x80 | opcode)).put((byte) payload.length);
+        }
+        else if (payload.length < 1 << 16) {
+            ret = ByteBuffer.allocate(4 + payload.length);
+            ret.put((byte) (0x80 | opcode)).put((byte) 126).putShort((short) payload.length);
+        }
+        else {
+            ret = ByteBuffer.allocate(10 + payload.length);
+            ret.put((byte) (0x80 | opcode)).put((byte) 127).putLong(payload.length);
+        }
+        ret.put(payload);
+        return ret.array();
+    }
+
+    /**
+     * Close the socket and unregister.
+     */
+    private void shutdown() {
+        HttpServer.removeWebSocket(this);
+        try {
+            socket.close();
+        }
+        catch (final IOException e) {
+            LOGGER.debug("close failed", e);
+        }
+        if (deflate != null) {
+            synchronized (this) {
+                deflate.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package miju.rpg.ugmt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Parsers for all threads. Neither factories nor builders are thread-safe,
+ * so each thread keeps a builder of its own per factory, which is reset for
+ * reuse; factories are only used under their lock. All factories are
+ * namespace aware and get the features of <b>XML_FEATURES</b>, a comma
+ * separated list of <em>feature=true|false</em>, e.g.
+ * <em>http://apache.org/xml/features/disallow-doctype-decl=true</em>.
+ */
+final class XmlParsers {
+    /** Features of all factories. */
+    private static final Map<String, Boolean> FEATURES = features(System.getProperty("XML_FEATURES", ""));
+
+    /** Builders of the thread by factory. */
+    private static final ThreadLocal<Map<DocumentBuilderFactory, DocumentBuilder>> BUILDERS =
+            ThreadLocal.withInitial(WeakHashMap::new);
+
+    /** Builders without validation. */
+    static final DocumentBuilderFactory PLAIN = newDocumentFactory();
+
+    /**
+     * Hide Constructor.
+     */
+    private XmlParsers() {
+    }
+
+    /**
+     * Create a configured document builder factory.
+     * @return factory, to be configured further before first use
+     */
+    static DocumentBuilderFactory newDocumentFactory() {
+        final DocumentBuilderFactory ret = DocumentBuilderFactory.newInstance();
+        ret.setNamespaceAware(true);
+        try {
+            for (Map.Entry<String, Boolean> entry : FEATURES.entrySet()) {
+                ret.setFeature(entry.getKey(), entry.getValue());
+            }
+        }
+        catch (final ParserConfigurationException e) {
+            throw new IllegalArgumentException("XML_FEATURES", e);
+        }
+        return ret;
+    }
+
+    /**
+     * Create a configured SAX parser factory.
+     * @return factory, to be configured further before first use
+     */
+    static SAXParserFactory newSaxFactory() {
+        final SAXParserFactory ret = SAXParserFactory.newInstance();
+        ret.setNamespaceAware(true);
+        try {
+            for (Map.Entry<String, Boolean> entry : FEATURES.entrySet()) {
+                ret.setFeature(entry.getKey(), entry.getValue());
+            }
+        }
+        catch (final ParserConfigurationException | SAXException e) {
+            throw new IllegalArgumentException("XML_FEATURES", e);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the thread's builder of a factory. It stays the thread's; use it
+     * for one parse or document at a time.
+     * @param factory factory
+     * @return builder, reset
+     * @throws ParserConfigurationException on error
+     */
+    static DocumentBuilder builder(final DocumentBuilderFactory factory) throws ParserConfigurationException {
+        final Map<DocumentBuilderFactory, DocumentBuilder> builders = BUILDERS.get();
+        DocumentBuilder ret = builders.get(factory);
+        if (ret == null) {
+            synchronized (factory) {
+                ret = factory.newDocumentBuilder();
+            }
+            builders.put(factory, ret);
+        }
+        else {
+            ret.reset();
+        }
+        ret.setErrorHandler(new XmlErrorHandler());
+        return ret;
+    }
+
+    /**
+     * Create an empty document.
+     * @return document
+     */
+    static Document newDocument() {
+        try {
+            return builder(PLAIN).newDocument();
+        }
+        catch (final ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parse the feature list.
+     * @param list comma separated <em>feature=true|false</em>
+     * @return features in order
+     */
+    private static Map<String, Boolean> features(final String list) {
+        final Map<String, Boolean> ret = new LinkedHashMap<>();
+        for (String item : list.split(",")) {
+            final int eq = item.lastIndexOf('=');
+            if (eq > 0) {
+                ret.put(item.substring(0, eq).trim(), Boolean.parseBoolean(item.substring(eq + 1).trim()));
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,336 @@
+package miju.rpg.ugmt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Schema validation of parsed files. The schemas a file names by its
+ * <em>xsi</em> hints are compiled once and kept until a schema file changes.
+ * Whether a parse validates is set by <b>XML_VALIDATION</b>:
+ * <em>always</em> (default), <em>changed</em> for files not validated
+ * before in their current version, <em>background</em> for parsing without
+ * and validating on a thread of its own, and <em>never</em>. As before,
+ * validation errors are logged. Schemas that fail to compile, e.g. missing
+ * ones, are logged as well and the files naming them are parsed without
+ * validation until a schema file changes. A parse without validation keeps white space
+ * between elements that validation would drop and does not know the id
+ * attributes of the schema.
+ */
+final class XmlValidation {
+    /** Validation modes. */
+    enum Mode {
+        /** Each parse. */
+        ALWAYS,
+        /** First parse of each version of a file. */
+        CHANGED,
+        /** Separately, on the validation thread. */
+        BACKGROUND,
+        /** Not at all. */
+        NEVER
+    }
+
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(XmlValidation.class);
+
+    /** Mode. */
+    static final Mode MODE = Mode.valueOf(System.getProperty("XML_VALIDATION", "always").toUpperCase(Locale.ROOT));
+
+    /** Schema compiling. */
+    private static final SchemaFactory SCHEMA_FACTORY = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+
+    /** Hint reading. */
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    /** Compiled schemas by their locations. */
+    private static final Map<String, Compiled> SCHEMAS = new ConcurrentHashMap<>();
+
+    /** Stamps of the files validated in {@link Mode#CHANGED}. */
+    private static final Map<Path, String> VALIDATED = new ConcurrentHashMap<>();
+
+    /** Schema cache hits. */
+    private static final LongAdder HITS = Metrics.hits("schemas");
+
+    /** Schema cache misses. */
+    private static final LongAdder MISSES = Metrics.misses("schemas");
+
+    /** Validation thread of {@link Mode#BACKGROUND}. */
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(r -> {
+        final Thread ret = new Thread(r, "validation");
+        ret.setDaemon(true);
+        return ret;
+    });
+
+    /**
+     * Hide Constructor.
+     */
+    private XmlValidation() {
+    }
+
+    /**
+     * Get the builders for parsing a file, validating or not.
+     * @param absPath file about to be parsed
+     * @return document builder factory
+     * @throws SAXException on error
+     * @throws IOException on error
+     */
+    static DocumentBuilderFactory factoryForParse(final Path absPath) throws SAXException, IOException {
+        final Compiled compiled = forParse(absPath);
+        return compiled == null ? XmlParsers.PLAIN : compiled.factory;
+    }
+
+    /**
+     * Get the schema to validate a file with while parsing it.
+     * @param absPath file about to be parsed
+     * @return schema or null for not validating
+     * @throws SAXException on error
+     * @throws IOException on error
+     */
+    static Schema schemaForParse(final Path absPath) throws SAXException, IOException {
+        final Compiled compiled = forParse(absPath);
+        return compiled == null ? null : compiled.schema;
+    }
+
+    /**
+     * Get the schema to validate a file with while parsing it. In
+     * {@link Mode#BACKGROUND} the validation is started here instead.
+     * @param absPath file about to be parsed
+     * @return compiled schema or null for not validating
+     * @throws SAXException on error
+     * @throws IOException on error
+     */
+    private static Compiled forParse(final Path absPath) throws SAXException, IOException {
+        switch (MODE) {
+        case ALWAYS:
+            return compile(absPath);
+        case CHANGED:
+            final String stamp = stamp(absPath);
+            if (stamp.equals(VALIDATED.put(absPath, stamp))) {
+                return null;
+            }
+            return compile(absPath);
+        case BACKGROUND:
+            BACKGROUND.execute(() -> validate(absPath));
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Validate a file, logging the errors.
+     * @param absPath file
+     */
+    private static void validate(final Path absPath) {
+        try {
+            final Compiled compiled = compile(absPath);
+            if (compiled != null) {
+                final Validator validator = compiled.schema.newValidator();
+                validator.setErrorHandler(new XmlErrorHandler());
+                validator.validate(new StreamSource(absPath.toFile()));
+            }
+        }
+        catch (final SAXException | IOException e) {
+            LOGGER.error("validating {} failed", absPath, e);
+        }
+    }
+
+    /**
+     * Get the compiled schemas named by the hints of a file.
+     * @param absPath file
+     * @return compiled schema or null, if the file names none or they fail to compile
+     * @throws IOException on error
+     */
+    private static Compiled compile(final Path absPath) throws IOException {
+        final List<URI> locations = hints(absPath);
+        if (locations.isEmpty()) {
+            return null;
+        }
+        final StringBuilder stamp = new StringBuilder();
+        for (URI location : locations) {
+            stamp.append(stamp(location)).append(' ');
+        }
+        final String key = locations.toString();
+        final Compiled cached = SCHEMAS.get(key);
+        if (cached != null && cached.stamp.equals(stamp.toString())) {
+            HITS.increment();
+            return cached.schema == null ? null : cached;
+        }
+        MISSES.increment();
+        final Source[] sources = new Source[locations.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new StreamSource(locations.get(i).toString());
+        }
+        Schema schema = null;
+        final CompileErrors errors = new CompileErrors();
+        synchronized (SCHEMA_FACTORY) {
+            SCHEMA_FACTORY.setErrorHandler(errors);
+            try {
+                schema = SCHEMA_FACTORY.newSchema(sources);
+            }
+            catch (final SAXException e) {
+                errors.fail(e);
+            }
+        }
+        if (errors.failed) {
+            LOGGER.warn("schema={} failed to compile, parsing without validation", key);
+            schema = null;
+        }
+        else {
+            LOGGER.info("compiled schema={}", key);
+        }
+        final Compiled ret = new Compiled(stamp.toString(), schema);
+        SCHEMAS.put(key, ret);
+        return schema == null ? null : ret;
+    }
+
+    /**
+     * Read the schema locations of the root element.
+     * @param absPath file
+     * @return resolved locations
+     * @throws IOException on error
+     */
+    private static List<URI> hints(final Path absPath) throws IOException {
+        final List<URI> ret = new ArrayList<>();
+        try (InputStream is = Files.newInputStream(absPath)) {
+            final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+            while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            if (reader.isStartElement()) {
+                final String ns = XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI;
+                final String noNs = reader.getAttributeValue(ns, "noNamespaceSchemaLocation");
+                if (noNs != null) {
+                    ret.add(absPath.toUri().resolve(noNs.trim()));
+                }
+                final String pairs = reader.getAttributeValue(ns, "schemaLocation");
+                if (pairs != null) {
+                    final String[] tokens = pairs.trim().split("\\s+");
+                    for (int i = 1; i < tokens.length; i += 2) {
+                        ret.add(absPath.toUri().resolve(tokens[i]));
+                    }
+                }
+            }
+            reader.close();
+        }
+        catch (final XMLStreamException e) {
+            // Not well-formed: the parse reports it
+        }
+        return ret;
+    }
+
+    /**
+     * Stamp of a schema, its modification time and size if it is a file.
+     * @param location schema
+     * @return stamp
+     */
+    private static String stamp(final URI location) {
+        if (!"file".equals(location.getScheme())) {
+            return location.toString();
+        }
+        try {
+            return stamp(Paths.get(location));
+        }
+        catch (final IOException e) {
+            return "missing";
+        }
+    }
+
+    /**
+     * Stamp of a file, its modification time and size.
+     * @param absPath file
+     * @return stamp
+     * @throws IOException on error
+     */
+    private static String stamp(final Path absPath) throws IOException {
+        return Files.getLastModifiedTime(absPath).toMillis() + "/" + Files.size(absPath);
+    }
+
+    /**
+     * A compiled schema and the builders validating with it.
+     */
+    private static final class Compiled {
+        /** Stamps of the schema files. */
+        private final String stamp;
+
+        /** Schema or null, if it failed to compile. */
+        private final Schema schema;
+
+        /** Builders or null. */
+        private final DocumentBuilderFactory factory;
+
+        /**
+         * Constructor.
+         * @param aStamp stamps of the schema files
+         * @param aSchema schema or null
+         */
+        Compiled(final String aStamp, final Schema aSchema) {
+            stamp = aStamp;
+            schema = aSchema;
+            if (schema == null) {
+                factory = null;
+                return;
+            }
+            factory = XmlParsers.newDocumentFactory();
+            factory.setIgnoringElementContentWhitespace(true);
+            factory.setSchema(schema);
+        }
+    }
+
+    /**
+     * Logs the errors of compiling a schema and remembers that there were some.
+     */
+    private static final class CompileErrors extends XmlErrorHandler {
+        /** Any error so far? */
+        private boolean failed;
+
+        @Override
+        public void error(final SAXParseException e) {
+            super.error(e);
+            failed = true;
+        }
+
+        @Override
+        public void fatalError(final SAXParseException e) {
+            super.fatalError(e);
+            failed = true;
+        }
+
+        /**
+         * Record an error thrown by the compiler.
+         * @param e error
+         */
+        void fail(final SAXException e) {
+            LOGGER.error("", e);
+            failed = true;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package miju.rpg.ugmt.art;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.file.Files;
@@ -17,6 +16,8 @@ import miju.rpg.ugmt.AbstractMain;
 import miju.rpg.ugmt.Data;
 import miju.rpg.ugmt.GraphicsUtilities;
 import miju.rpg.ugmt.HttpQueryParams;
+import miju.rpg.ugmt.ImageEncoder;
+import miju.rpg.ugmt.Trace;
 import miju.rpg.ugmt.XmlStreamsUtil;
 import static miju.rpg.ugmt.XmlNames.Attributes.PERMIT;
 import static miju.rpg.ugmt.XmlNames.Attributes.FILE;
@@ -24,7 +25,11 @@ import static miju.rpg.ugmt.XmlNames.Attributes.FILE;
 /**
  * Main launch class.
  */
+@SuppressWarnings("try") // spans, see Trace
 public class Main extends AbstractMain { // NO_UCD (unused code)
+    /** Rendered thumbnails. */
+    private final ThumbnailCache thumbnails = new ThumbnailCache();
+
     @Override
     public String getContentType(final HttpQueryParams args) throws UnsupportedEncodingException {
         final String size = args.getSize();
@@ -49,10 +54,12 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
         // XML element to get
         Element elem = null;
         if (id != null) {
-            elem = getData().getElementById(id);
+            elem = getData().copyElementById(id);
         }
         else { // image != null
-            elem = XmlStreamsUtil.getElementByTagAndAttrEqVal(getData().getRoot(), "art", FILE, img);
+            synchronized (getData()) {
+                elem = getData().copy(XmlStreamsUtil.getElementByTagAndAttrEqVal(getData().getRoot(), "art", FILE, img));
+            }
         }
 
         // File to get (from element)
@@ -75,16 +82,37 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
     /**
      * Render the image for the output stream. Scale according to "best fit", if
      * the image is larger than th requested size, else center. Images with 0
-     * width or height or size = 0 will result in strange results.
+     * width or height or size = 0 will result in strange results. Rendered
+     * images are cached.
      * @param strSize size of image
      * @param relPath file to load
      * @return output stream
      * @throws IOException on error
      */
     private Object renderImage(final String strSize, final Path relPath) throws IOException {
-        // Draw scaled image
         final int size = Integer.parseInt(strSize);
-        final BufferedImage image = readBestSizeImage(size, relPath);
+        final Path absSource = bestSizeFile(size, relPath);
+        if (absSource == null) {
+            return new byte[0];
+        }
+        byte[] ret = thumbnails.get(absSource, size);
+        if (ret == null) {
+            try (Trace.Span span = Trace.span("thumbnail")) {
+                ret = scaleImage(size, ImageIO.read(absSource.toFile()));
+            }
+            thumbnails.put(absSource, size, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Draw the scaled image.
+     * @param size size of image
+     * @param image image to scale
+     * @return PNG bytes
+     * @throws IOException on error
+     */
+    private static byte[] scaleImage(final int size, final BufferedImage image) throws IOException {
         final int w = image.getWidth();
         final int h = image.getHeight();
         final BufferedImage buf = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
@@ -98,28 +126,25 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
         else { /* w <= h <= size || size >= w > h, i.e. size >= w && size >= h */
             g.drawImage(image, (size - w) / 2, (size - h) / 2, null);
         }
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(buf, "png", baos);
-        return baos.toByteArray();
+        return ImageEncoder.encode(buf, "png");
     }
 
     /**
      * This checks, whether the image is already available for the desired size.
      * @param size desired size
      * @param relPath pure filename
-     * @return desired image, hopefully of right size.
-     * @throws IOException on error
+     * @return desired image file, hopefully of right size.
      */
-    private BufferedImage readBestSizeImage(final int size, final Path relPath) throws IOException {
+    private static Path bestSizeFile(final int size, final Path relPath) {
         if (relPath != null && relPath.getParent() != null && relPath.getFileName() != null) {
             final Path tmp = relPath.getFileName();
             final Path best = relPath.getParent().resolve(tmp.toString() + "-" + size);
             final Path absFile = Data.ROOT_ABS_PATH.resolve(best);
             if (Files.exists(absFile)) {
-                return ImageIO.read(absFile.toFile());
+                return absFile;
             }
             else {
-                return ImageIO.read(Data.ROOT_ABS_PATH.resolve(relPath).toFile());
+                return Data.ROOT_ABS_PATH.resolve(relPath);
             }
         }
         return null;
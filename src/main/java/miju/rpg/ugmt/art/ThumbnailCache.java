@@ -0,0 +1,153 @@
+package miju.rpg.ugmt.art;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import miju.rpg.ugmt.Data;
+import miju.rpg.ugmt.Metrics;
+import miju.rpg.ugmt.Utils;
+
+/**
+ * Cache of rendered thumbnails keyed by source file, size and modification
+ * time of the source. Recently used thumbnails are held in memory up to
+ * <b>ART_CACHE_BYTES</b> bytes, all of them are kept in <em>cache/art</em>
+ * with the modification time of their source, so a changed source makes its
+ * thumbnails stale.
+ */
+final class ThumbnailCache {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    /** Cache directory. */
+    private static final Path CACHE_ABS_PATH = Data.ROOT_ABS_PATH.resolve("cache").resolve("art");
+
+    /** Thumbnails found in memory or on disk. */
+    private static final LongAdder HITS = Metrics.hits("thumbnails");
+
+    /** Thumbnails to be rendered. */
+    private static final LongAdder MISSES = Metrics.misses("thumbnails");
+
+    /** Memory budget. */
+    private final long maxBytes = Long.getLong("ART_CACHE_BYTES", 32L << 20);
+
+    /** Thumbnails in access order. */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /** Bytes held by the entries. */
+    private long bytes;
+
+    /**
+     * Get a thumbnail.
+     * @param absSource image the thumbnail was rendered from
+     * @param size thumbnail size
+     * @return PNG bytes or null, if there is no current thumbnail
+     * @throws IOException on error
+     */
+    byte[] get(final Path absSource, final int size) throws IOException {
+        final String key = key(absSource, size);
+        final FileTime modified = Files.getLastModifiedTime(absSource);
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.modified.equals(modified)) {
+                HITS.increment();
+                return entry.png;
+            }
+        }
+        final Path absFile = cacheFile(absSource, size);
+        if (Files.exists(absFile) && Files.getLastModifiedTime(absFile).equals(modified)) {
+            final byte[] png = Files.readAllBytes(absFile);
+            remember(key, modified, png);
+            HITS.increment();
+            return png;
+        }
+        MISSES.increment();
+        return null;
+    }
+
+    /**
+     * Store a thumbnail.
+     * @param absSource image the thumbnail was rendered from
+     * @param size thumbnail size
+     * @param png PNG bytes
+     * @throws IOException on error
+     */
+    void put(final Path absSource, final int size, final byte[] png) throws IOException {
+        final FileTime modified = Files.getLastModifiedTime(absSource);
+        final Path absFile = cacheFile(absSource, size);
+        Utils.writeAtomically(absFile, png);
+        Files.setLastModifiedTime(absFile, modified);
+        remember(key(absSource, size), modified, png);
+    }
+
+    /**
+     * Hold a thumbnail in memory and evict the least recently used ones
+     * beyond the budget.
+     * @param key cache key
+     * @param modified modification time of the source
+     * @param png PNG bytes
+     */
+    private synchronized void remember(final String key, final FileTime modified, final byte[] png) {
+        final Entry old = entries.put(key, new Entry(modified, png));
+        if (old != null) {
+            bytes -= old.png.length;
+        }
+        bytes += png.length;
+        final Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().png.length;
+            it.remove();
+        }
+        LOGGER.debug("thumbnails={} bytes={}", entries.size(), bytes);
+    }
+
+    /**
+     * Memory key.
+     * @param absSource source image
+     * @param size thumbnail size
+     * @return key
+     */
+    private static String key(final Path absSource, final int size) {
+        return absSource + "@" + size;
+    }
+
+    /**
+     * Disk location of a thumbnail.
+     * @param absSource source image
+     * @param size thumbnail size
+     * @return thumbnail file
+     */
+    private static Path cacheFile(final Path absSource, final int size) {
+        final Path rel = Data.ROOT_ABS_PATH.relativize(absSource.toAbsolutePath().normalize());
+        return CACHE_ABS_PATH.resolve(rel.toString().replace("..", "_") + "-" + size + ".png");
+    }
+
+    /**
+     * Cached thumbnail.
+     */
+    private static final class Entry {
+        /** Modification time of the source. */
+        private final FileTime modified;
+
+        /** PNG bytes. */
+        private final byte[] png;
+
+        /**
+         * Constructor.
+         * @param aModified modification time of the source
+         * @param aPng PNG bytes
+         */
+        private Entry(final FileTime aModified, final byte[] aPng) {
+            modified = aModified;
+            png = aPng;
+        }
+    }
+}
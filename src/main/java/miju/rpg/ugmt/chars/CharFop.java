@@ -9,10 +9,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import miju.rpg.ugmt.Data;
+import miju.rpg.ugmt.Trace;
 
 /**
  * Obvious FOP managing class.
  */
+@SuppressWarnings("try") // spans, see Trace
 class CharFop {
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(CharFop.class);
@@ -25,7 +27,7 @@ class CharFop {
      */
 
     synchronized byte[] transform(final String fileIn, final String fileOut) {
-        try {
+        try (Trace.Span span = Trace.span("inkscape")) {
             final String[] params = {"inkscape", fileIn, "--without-gui", "--export-pdf=" + fileOut };
             LOGGER.info("start: {} {} {} {}", params[0], params[1], params[2], params[3]);
             ProcessBuilder pb = new ProcessBuilder(params[0], params[1], params[2], params[3]);
@@ -42,7 +44,7 @@ class CharFop {
     }
 
     synchronized byte[] transform(List<String> fileNames) {
-        try {
+        try (Trace.Span span = Trace.span("pdftk")) {
             File f = File.createTempFile("ugmt2-char", ".pdf");
             final String[] params = {"pdftk", fileNames.get(0), fileNames.get(1), fileNames.get(2), "cat", "output", f.getAbsolutePath() };
             LOGGER.info("start: {} {} {} {} {} {} {}", params[0], params[1], params[2], params[3], params[4], params[5], params[6]);
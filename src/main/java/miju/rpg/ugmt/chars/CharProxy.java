@@ -29,6 +29,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.NodeList;
 
+import miju.rpg.ugmt.Trace;
 import miju.rpg.ugmt.Utils;
 import miju.rpg.ugmt.XmlNames.Elements;
 import miju.rpg.ugmt.XmlPrinter;
@@ -41,6 +42,7 @@ import miju.rpg.ugmt.chars.handlers.SpellHandler;
 /**
  * Base class for all char proxies. Must be instantiated, because all rules need their peculiarities.
  */
+@SuppressWarnings("try") // spans, see Trace
 public final class CharProxy {
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(CharProxy.class);
@@ -352,7 +354,7 @@ public final class CharProxy {
      * @return value of attribute
      */
     public String calcAttribute(final String name) {
-        try {
+        try (Trace.Span span = Trace.span("rule attribute")) {
             final String rule = getRules().getAttrForNamedTag("attribute", name, "rule");
             LOGGER.debug("attribute: name={}, rule={}", name, rule);
             if (rule != null && rule.length() != 0) {
@@ -399,7 +401,7 @@ public final class CharProxy {
      */
     public String getClassSkill(final String name) {
         String ret = "";
-        try {
+        try (Trace.Span span = Trace.span("rule class")) {
             final NodeList list = (NodeList) getXPathProvider().compile(".//attribute[starts-with(@name, 'Class')]/@value")
                     .evaluate(getCharNodes(), XPathConstants.NODESET);
             LOGGER.debug("class: list.length={}", list.getLength());
@@ -481,7 +483,7 @@ public final class CharProxy {
         String ret = "";
         Element elem = elemStart;
         String rule = ruleStart;
-        try {
+        try (Trace.Span span = Trace.span("rule " + elemName)) {
             while (elem != null && rule.length() == 0) {
                 if (elem.getNodeName().equals(elemName)) {
                     rule = getXPathProvider().compile("./modifier[@name='" + attr + "']/@value").evaluate(elem);
@@ -16,10 +16,12 @@ import org.w3c.dom.Element;
 import miju.rpg.ugmt.AbstractMain;
 import miju.rpg.ugmt.Data;
 import miju.rpg.ugmt.HttpQueryParams;
+import miju.rpg.ugmt.Trace;
 
 /**
  * Main launch class.
  */
+@SuppressWarnings("try") // spans, see Trace
 public class Main extends AbstractMain { // NO_UCD (unused code)
     /** Helper string constant. */
     static final String MAP = "map";
@@ -104,12 +106,15 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
      */
     private String getCharXML(final String id, final String fileName, final boolean gm) throws Exception {
         // Get char
-        final Element charNode = getData().getElementById(id);
+        final Element charNode = getData().copyElementById(id);
         if (charNode == null || !(gm || permit(charNode))) {
             return "";
         }
         final String rules = charNode.getAttribute("rules");
-        final CharProxy ch = CharProxy.getCharacterProxy(charNode);
+        final CharProxy ch;
+        try (Trace.Span span = Trace.span("proxy")) {
+            ch = CharProxy.getCharacterProxy(charNode);
+        }
 
         // Check rules specific and default template
         final Path absPath = Data.ROOT_ABS_PATH.resolve(Paths.get(CHARS_REL_PATH, rules, fileName));
@@ -117,7 +122,11 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
             return "";
         }
 
-        return trafo.transform(ch, new String(Files.readAllBytes(absPath)));
+        final String template = new String(Files.readAllBytes(absPath));
+        // The rules are shared by all sheets of their version
+        synchronized (ch.getRules()) {
+            return trafo.transform(ch, template);
+        }
     }
 }
 
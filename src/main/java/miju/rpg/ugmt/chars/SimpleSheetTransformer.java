@@ -14,12 +14,15 @@ import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import miju.rpg.ugmt.Trace;
+
 /**
  * This class parses a text files (usually XML) and replaces any occurrence of
  * "$Var", where "Var" may be any string starting with a letter - a typical
  * variable indication in scripts. The rules for replacements are explained in
  * the transform method as they occur.
  */
+@SuppressWarnings("try") // spans, see Trace
 class SimpleSheetTransformer {
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(SimpleSheetTransformer.class);
@@ -52,6 +55,18 @@ class SimpleSheetTransformer {
      * @return transformed character
      */
     String transform(final CharProxy c, final String template) {
+        try (Trace.Span span = Trace.span("template")) {
+            return transformSections(c, template);
+        }
+    }
+
+    /**
+     * Transformation process, section by section.
+     * @param c character proxy
+     * @param template template to transform through
+     * @return transformed character
+     */
+    private String transformSections(final CharProxy c, final String template) {
         String out = template;
 
         out = out.replaceAll(REGEX_LITERAL_DOLLAR + "Name", c.getName());
@@ -67,24 +82,34 @@ class SimpleSheetTransformer {
         out = out.replaceAll(REGEX_LITERAL_DOLLAR + "ShortNote-3", c.getShortNote(3));
 
         // Replace attributes. Name of attributes.
-        for (String attr : c.getAttributes()) {
-            out = out.replaceAll(REGEX_LITERAL_DOLLAR + attr, c.getAttribute(attr));
+        try (Trace.Span span = Trace.span("attributes")) {
+            for (String attr : c.getAttributes()) {
+                out = out.replaceAll(REGEX_LITERAL_DOLLAR + attr, c.getAttribute(attr));
+            }
         }
 
         // Replace Spells. Name of spell with prefix "Spell-" and
         // added "N" for name and "V" for skill level
-        out = transformSpells(c, out);
+        try (Trace.Span span = Trace.span("spells")) {
+            out = transformSpells(c, out);
+        }
 
         final Map<String, Integer> idx = new HashMap<String, Integer>();
 
         // Replace skills.
-        out = transformSkills(c, template, out, idx);
+        try (Trace.Span span = Trace.span("skills")) {
+            out = transformSkills(c, template, out, idx);
+        }
 
         // Replace equipment
-        out = transformEquipment(c, template, out, idx);
+        try (Trace.Span span = Trace.span("equipment")) {
+            out = transformEquipment(c, template, out, idx);
+        }
 
         // Clean out. Clean out access commas too.
-        return out.replaceAll(",?\\s*\\$[a-zäöüßA-ZÄÖÜ0-9/,. -]*", "");
+        try (Trace.Span span = Trace.span("cleanup")) {
+            return out.replaceAll(",?\\s*\\$[a-zäöüßA-ZÄÖÜ0-9/,. -]*", "");
+        }
     }
 
     /**
@@ -20,10 +20,13 @@ import javax.xml.xpath.XPathFunctionResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
 import static miju.rpg.ugmt.Utils.parse;
 import static miju.rpg.ugmt.Utils.parseDbl;
 
+import miju.rpg.ugmt.Histogram;
+import miju.rpg.ugmt.Metrics;
 import miju.rpg.ugmt.Utils;
 import miju.rpg.ugmt.XmlStreamsUtil;
 
@@ -37,6 +40,9 @@ public class XPathProvider {
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(XPathProvider.class);
 
+    /** Rule evaluation time, nested evaluations included. */
+    private static final Histogram XPATH_TIME = Metrics.histogram(Metrics.XPATH, "XPath evaluation time.", "source", "rules");
+
     /** XPath helper. */
     private XPathFactory xpathFactory;
 
@@ -378,7 +384,7 @@ public class XPathProvider {
         String compile = rule.replaceAll(Matcher.quoteReplacement("$name"), name);
         compile = unquote(compile);
         LOGGER.debug("compile={}", compile);
-        return xpathFactory.newXPath().compile(compile);
+        return new TimedExpression(xpathFactory.newXPath().compile(compile));
     }
 
     /**
@@ -484,4 +490,52 @@ public class XPathProvider {
         }
         return arg;
     }
+
+    /**
+     * Expression recording its evaluation time.
+     */
+    private static final class TimedExpression implements XPathExpression {
+        /** Compiled expression. */
+        private final XPathExpression expression;
+
+        /**
+         * Constructor.
+         * @param anExpression compiled expression
+         */
+        TimedExpression(final XPathExpression anExpression) {
+            expression = anExpression;
+        }
+
+        @Override
+        public Object evaluate(final Object item, final QName returnType) throws XPathExpressionException {
+            final long start = System.nanoTime();
+            try {
+                return expression.evaluate(item, returnType);
+            }
+            finally {
+                XPATH_TIME.recordSince(start);
+            }
+        }
+
+        @Override
+        public String evaluate(final Object item) throws XPathExpressionException {
+            return (String) evaluate(item, XPathConstants.STRING);
+        }
+
+        @Override
+        public Object evaluate(final InputSource source, final QName returnType) throws XPathExpressionException {
+            final long start = System.nanoTime();
+            try {
+                return expression.evaluate(source, returnType);
+            }
+            finally {
+                XPATH_TIME.recordSince(start);
+            }
+        }
+
+        @Override
+        public String evaluate(final InputSource source) throws XPathExpressionException {
+            return (String) evaluate(source, XPathConstants.STRING);
+        }
+    }
 }
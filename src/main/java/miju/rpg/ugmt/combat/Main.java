@@ -65,7 +65,7 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
      */
     private String getCharXML(final String id, final boolean gm) throws Exception {
         // Get char
-        final Element charNode = getData().getElementById(id);
+        final Element charNode = getData().copyElementById(id);
         if (charNode == null || !(gm || permit(charNode))) {
             return "";
         }
@@ -95,7 +95,7 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
     private String transform(final String id, final String template, final Document rules) throws XPathExpressionException {
         LOGGER.debug("id={}", id);
         String out = template;
-        final Element ch = getData().getElementById(id);
+        final Element ch = getData().copyElementById(id);
         final String name = (String) xpath.compile("@name").evaluate(ch, XPathConstants.STRING);
         out = out.replaceAll("\\$Name", name + "-" + count);
 
@@ -0,0 +1,295 @@
+package miju.rpg.ugmt.maps;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tile store that keeps all rendered tiles in one append-only archive file,
+ * which is memory-mapped for reading. The archive consists of a header and
+ * tile records. Records never cross a segment boundary, so each segment can
+ * be mapped on its own, and unused space at the end of a segment is zero.
+ * A record is <em>length (int), z (int), x (int), y (int), format length
+ * (byte), format (ASCII), data</em>, where length counts everything after
+ * itself. The index is built by scanning the record headers when the archive
+ * is opened; a record torn by a crash is cut off then. A segment is mapped
+ * again only when it has grown to twice its mapping; records appended since
+ * are read from the file.
+ * Tiles not in the archive are looked up in the source store, which holds the
+ * hand-made base tiles.
+ */
+final class ArchiveTileStore implements TileStore {
+    /** Archive file name within the tile root. */
+    static final String FILE_NAME = "tiles.archive";
+
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveTileStore.class);
+
+    /** File magic. */
+    private static final byte[] MAGIC = "UGMTTILE".getBytes(StandardCharsets.US_ASCII);
+
+    /** Format version. */
+    private static final int VERSION = 1;
+
+    /** Size of the file header. */
+    private static final int HEADER = MAGIC.length + Integer.BYTES;
+
+    /** Size of a mapped segment. */
+    private static final long SEGMENT = 1L << 30;
+
+    /** Least size of a segment mapping once it is grown. */
+    private static final long MIN_MAPPING = 1L << 20;
+
+    /** Record fields before the format string: length, z, x, y, format length. */
+    private static final int RECORD_HEADER = 4 * Integer.BYTES + 1;
+
+    /** Archive file. */
+    private final FileChannel channel;
+
+    /** Store for the tiles not in the archive. */
+    private final TileStore source;
+
+    /** Tile key to location in the archive. */
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+    /** Mapped segments. */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    /** End of the last record. */
+    private long end;
+
+    /**
+     * Constructor. Opens or creates the archive and builds the index.
+     * @param absFile archive file
+     * @param aSource store for the tiles not in the archive
+     * @throws IOException on error
+     */
+    ArchiveTileStore(final Path absFile, final TileStore aSource) throws IOException {
+        source = aSource;
+        channel = FileChannel.open(absFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.put(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+        }
+        scan(absFile);
+        LOGGER.warn("archive={} tiles={} bytes={}", absFile, index.size(), end);
+    }
+
+    /**
+     * Read the record headers and fill the index.
+     * @param absFile archive file (for messages)
+     * @throws IOException on a broken archive
+     */
+    private void scan(final Path absFile) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        channel.read(header, 0);
+        header.flip();
+        final byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+            throw new IOException("Not a tile archive: " + absFile);
+        }
+        final ByteBuffer rec = ByteBuffer.allocate(RECORD_HEADER + Byte.MAX_VALUE);
+        long pos = HEADER;
+        while (pos < size) {
+            final long segmentEnd = Math.min(size, (pos / SEGMENT + 1) * SEGMENT);
+            if (segmentEnd - pos < RECORD_HEADER) {
+                if (segmentEnd == size) {
+                    LOGGER.warn("archive={} torn header at={}, truncating", absFile, pos);
+                    channel.truncate(pos);
+                    break;
+                }
+                pos = segmentEnd;
+                continue;
+            }
+            rec.clear();
+            channel.read(rec, pos);
+            rec.flip();
+            final int length = rec.getInt();
+            if (length == 0) {
+                // Zero filled rest of segment
+                pos = (pos / SEGMENT + 1) * SEGMENT;
+                continue;
+            }
+            final int flength = length < RECORD_HEADER - Integer.BYTES ? -1 : rec.get(RECORD_HEADER - 1);
+            final int offset = RECORD_HEADER + flength;
+            if (flength < 0 || offset > Integer.BYTES + length || pos + Integer.BYTES + length > segmentEnd) {
+                LOGGER.warn("archive={} torn record at={}, truncating", absFile, pos);
+                channel.truncate(pos);
+                break;
+            }
+            final int z = rec.getInt();
+            final int x = rec.getInt();
+            final int y = rec.getInt();
+            final byte[] fbytes = new byte[flength];
+            rec.get();
+            rec.get(fbytes);
+            index.put(key(z, x, y, new String(fbytes, StandardCharsets.US_ASCII)),
+                    new Entry(pos + offset, Integer.BYTES + length - offset));
+            pos += Integer.BYTES + length;
+        }
+        end = Math.min(pos, channel.size());
+    }
+
+    /**
+     * Index key.
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @param f image format
+     * @return key
+     */
+    private static String key(final int z, final int x, final int y, final String f) {
+        return z + "/" + x + "/" + y + "." + f;
+    }
+
+    @Override
+    public boolean contains(final int z, final int x, final int y, final String f) throws IOException {
+        return index.containsKey(key(z, x, y, f)) || source.contains(z, x, y, f);
+    }
+
+    @Override
+    public byte[] read(final int z, final int x, final int y, final String f) throws IOException {
+        final Entry entry = index.get(key(z, x, y, f));
+        if (entry == null) {
+            return source.read(z, x, y, f);
+        }
+        final ByteBuffer buf = slice(entry);
+        final byte[] ret = new byte[buf.remaining()];
+        buf.get(ret);
+        return ret;
+    }
+
+    @Override
+    public Object serve(final int z, final int x, final int y, final String f) throws IOException {
+        final Entry entry = index.get(key(z, x, y, f));
+        if (entry == null) {
+            return source.serve(z, x, y, f);
+        }
+        return slice(entry);
+    }
+
+    @Override
+    public synchronized void write(final int z, final int x, final int y, final String f, final byte[] bytes) throws IOException {
+        final byte[] fbytes = f.getBytes(StandardCharsets.US_ASCII);
+        final int total = RECORD_HEADER + fbytes.length + bytes.length;
+        if (fbytes.length > Byte.MAX_VALUE || total > SEGMENT) {
+            throw new IOException("Tile too large: " + key(z, x, y, f));
+        }
+        // Never cross a segment boundary; the gap stays zero
+        long pos = end;
+        if (pos / SEGMENT != (pos + total - 1) / SEGMENT) {
+            pos = (pos / SEGMENT + 1) * SEGMENT;
+        }
+        final ByteBuffer rec = ByteBuffer.allocate(total);
+        rec.putInt(total - Integer.BYTES).putInt(z).putInt(x).putInt(y).put((byte) fbytes.length).put(fbytes).put(bytes).flip();
+        writeFully(rec, pos);
+        end = pos + total;
+        // Publish only after the record is complete
+        index.put(key(z, x, y, f), new Entry(pos + RECORD_HEADER + fbytes.length, bytes.length));
+    }
+
+    /**
+     * Write a buffer completely.
+     * @param buf buffer to write
+     * @param position file position
+     * @throws IOException on error
+     */
+    private void writeFully(final ByteBuffer buf, final long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /**
+     * Get a read-only view of a tile in the mapped archive, or a copy of a
+     * tile appended after the mapping.
+     * @param entry tile location
+     * @return tile bytes
+     * @throws IOException on mapping problems
+     */
+    private ByteBuffer slice(final Entry entry) throws IOException {
+        final int start = (int) (entry.offset % SEGMENT);
+        final MappedByteBuffer mapped = mapping((int) (entry.offset / SEGMENT), start + entry.length);
+        if (mapped == null) {
+            final ByteBuffer ret = ByteBuffer.allocate(entry.length);
+            long pos = entry.offset;
+            while (ret.hasRemaining()) {
+                final int n = channel.read(ret, pos);
+                if (n < 0) {
+                    throw new EOFException("Tile beyond archive end at " + pos);
+                }
+                pos += n;
+            }
+            ret.flip();
+            return ret.asReadOnlyBuffer();
+        }
+        final ByteBuffer ret = mapped.duplicate();
+        ret.position(start).limit(start + entry.length);
+        return ret.slice();
+    }
+
+    /**
+     * Get the mapping of a segment. The segment is mapped up to the archive
+     * end when it is not mapped yet or has grown to twice its mapping; the
+     * replaced mapping is released to the views still using it.
+     * @param seg segment number
+     * @param needed bytes of the segment to be mapped
+     * @return mapping or null, if the bytes are to be read from the file
+     * @throws IOException on mapping problems
+     */
+    private synchronized MappedByteBuffer mapping(final int seg, final long needed) throws IOException {
+        while (segments.size() <= seg) {
+            segments.add(null);
+        }
+        MappedByteBuffer ret = segments.get(seg);
+        if (ret != null && ret.capacity() >= needed) {
+            return ret;
+        }
+        final long base = seg * SEGMENT;
+        final long available = Math.min(SEGMENT, end - base);
+        if (ret != null && available < Math.max(2L * ret.capacity(), MIN_MAPPING)) {
+            return null;
+        }
+        ret = channel.map(FileChannel.MapMode.READ_ONLY, base, available);
+        segments.set(seg, ret);
+        return ret;
+    }
+
+    /**
+     * Location of a tile.
+     */
+    private static final class Entry {
+        /** File offset of the data. */
+        private final long offset;
+
+        /** Length of the data. */
+        private final int length;
+
+        /**
+         * Constructor.
+         * @param anOffset file offset
+         * @param aLength data length
+         */
+        private Entry(final long anOffset, final int aLength) {
+            offset = anOffset;
+            length = aLength;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package miju.rpg.ugmt.maps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import miju.rpg.ugmt.Utils;
+
+/**
+ * Tile store with one file per tile in <em>z/x/y.f</em> layout.
+ */
+final class DirectoryTileStore implements TileStore {
+    /** Root directory. */
+    private final Path absRoot;
+
+    /**
+     * Constructor.
+     * @param anAbsRoot root directory
+     */
+    DirectoryTileStore(final Path anAbsRoot) {
+        absRoot = anAbsRoot;
+    }
+
+    /**
+     * Get the file of a tile.
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @param f image format
+     * @return tile file
+     */
+    private Path path(final int z, final int x, final int y, final String f) {
+        return absRoot.resolve(Integer.toString(z)).resolve(Integer.toString(x)).resolve(y + "." + f);
+    }
+
+    @Override
+    public boolean contains(final int z, final int x, final int y, final String f) {
+        return Files.exists(path(z, x, y, f));
+    }
+
+    @Override
+    public byte[] read(final int z, final int x, final int y, final String f) throws IOException {
+        return Files.readAllBytes(path(z, x, y, f));
+    }
+
+    @Override
+    public Object serve(final int z, final int x, final int y, final String f) {
+        return path(z, x, y, f).toFile();
+    }
+
+    @Override
+    public void write(final int z, final int x, final int y, final String f, final byte[] bytes) throws IOException {
+        Utils.writeAtomically(path(z, x, y, f), bytes);
+    }
+}
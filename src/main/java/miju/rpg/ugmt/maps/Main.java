@@ -2,37 +2,65 @@ package miju.rpg.ugmt.maps;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.List;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 import javax.imageio.ImageIO;
 
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
 
 import miju.rpg.ugmt.AbstractMain;
-import miju.rpg.ugmt.Data;
-import miju.rpg.ugmt.GraphicsUtilities;
 import miju.rpg.ugmt.HttpQueryParams;
+import miju.rpg.ugmt.ImageEncoder;
+import miju.rpg.ugmt.ImageScaler;
 import miju.rpg.ugmt.MimeType;
-import miju.rpg.ugmt.XmlStreamsUtil;
+import miju.rpg.ugmt.Trace;
 
 /**
  * Main launch class.
  */
+@SuppressWarnings("try") // spans, see Trace
 public class Main extends AbstractMain { // NO_UCD (unused code)
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
-    private static final String ROOT = "/storage/regional/";
-    
     private static Weather weather = new Weather(4);
 
+    /** Tiles currently being rendered, by tile key. */
+    private static final Map<String, CompletableFuture<Void>> RENDERING = new ConcurrentHashMap<>();
+
+    /** Limits the number of tiles rendered in parallel. */
+    private static final Semaphore RENDER_PERMITS = new Semaphore(
+            Integer.getInteger("MAPS_RENDER_THREADS", Runtime.getRuntime().availableProcessors()));
+
+    /** Filter for upscaling base tiles, property <b>MAPS_SCALE_FILTER</b>, NEAREST or BILINEAR for a fast preview. */
+    private static final ImageScaler.Filter SCALE_FILTER = ImageScaler.Filter.valueOf(
+            System.getProperty("MAPS_SCALE_FILTER", ImageScaler.Filter.BICUBIC.name()));
+
+    /** Overlay maps by zoom and tile. */
+    private final OverlayIndex overlays = new OverlayIndex();
+
+    /** Rendered and base tiles. */
+    private final TileStore store;
+
+    /**
+     * Constructor. The tile root and store type are taken from the
+     * properties <b>MAPS_ROOT</b> and <b>MAPS_STORE</b>.
+     * @throws IOException if the tile store cannot be opened
+     */
+    public Main() throws IOException {
+        store = TileStore.create(Paths.get(System.getProperty("MAPS_ROOT", "/storage/regional/")),
+                System.getProperty("MAPS_STORE", "directory"));
+    }
+
     @Override
     public String getContentType(final HttpQueryParams args) throws UnsupportedEncodingException {
         String f = args.getValue("f", false);
@@ -54,20 +82,67 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
             int x = Integer.parseInt(args.getValue("x", false));
             int y = Integer.parseInt(args.getValue("y", false));
             if (f.equals("wth")) {
-                File file = File.createTempFile("wth", "png");
-                ImageIO.write(weather.getImage(z, x, y), "png", file);
-                return file;
+                // Transient, so encode fast
+                return ImageEncoder.encodeFast(weather.getImage(z, x, y), "png");
             }
-            File file = new File(ROOT + z + "/" + x + "/" + y + "." + f);
-            LOGGER.info("file={} exists= {}", file.getAbsolutePath(), file.exists());
-            if (!file.exists()) {
-                 FileUtils.writeByteArrayToFile(file, getBytes(z,x,y,f));
+            boolean exists = store.contains(z, x, y, f);
+            LOGGER.info("tile={}/{}/{}.{} exists={}", z, x, y, f, exists);
+            if (!exists) {
+                render(z, x, y, f);
             }
-            return file;
+            return store.serve(z, x, y, f);
         }
         return super.getContent(args, gm);
     }
 
+    /**
+     * Render a missing tile into the store. Concurrent requests for the same
+     * tile wait for the first one instead of rendering again, and the number
+     * of tiles rendered at the same time is limited.
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @param f image format
+     * @throws Exception on error
+     */
+    private void render(final int z, final int x, final int y, final String f) throws Exception {
+        final String key = z + "/" + x + "/" + y + "." + f;
+        final CompletableFuture<Void> mine = new CompletableFuture<>();
+        final CompletableFuture<Void> running = RENDERING.putIfAbsent(key, mine);
+        if (running != null) {
+            LOGGER.debug("waiting for tile={}", key);
+            try {
+                running.get();
+                return;
+            }
+            catch (final ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            if (!store.contains(z, x, y, f)) {
+                RENDER_PERMITS.acquire();
+                try {
+                    store.write(z, x, y, f, getBytes(z, x, y, f));
+                }
+                finally {
+                    RENDER_PERMITS.release();
+                }
+            }
+            mine.complete(null);
+        }
+        catch (final Exception e) {
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            RENDERING.remove(key, mine);
+        }
+    }
+
     /**
      * Delivers a byte array of image data for our map in coordinates that leaflet.js uses.
      * Can be cached.
@@ -82,44 +157,36 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
         int ly = y;
         int lz = z;
         int scale = 1;
-        File file = new File(ROOT + lz + "/" + lx + "/" + ly + "." + f);
-        while (!file.exists()) {
+        while (!store.contains(lz, lx, ly, f)) {
             lz--;
             lx /= 2;
             ly /= 2;
-            file = new File(ROOT + lz + "/" + lx + "/" + ly + "." + f);
             scale *= 2;
+            if (lz < 0) {
+                throw new IOException("No base tile for " + z + "/" + x + "/" + y + "." + f);
+            }
+        }
+        LOGGER.info("lx={}, ly={}, scale={}, lz={}", lx, ly, scale, lz);
+        BufferedImage img;
+        try (Trace.Span span = Trace.span("decode")) {
+            img = ImageIO.read(new ByteArrayInputStream(store.read(lz, lx, ly, f)));
         }
-        LOGGER.info("lx={}, ly={}, scale={}, file={} exists={}", lx, ly, scale, file.getAbsolutePath(), file.exists());
-        BufferedImage img = ImageIO.read(file);
         int upscale = scale * 256;
         int x0 = 256 * (x - scale * lx);
         int y0 = 256 * (y - scale * ly);
-        BufferedImage scaledImg = GraphicsUtilities.getScaledInstance(img, upscale, upscale);
         LOGGER.info("x0={}, y0={}, upscale={}", x0, y0, upscale);
-        BufferedImage subImg = scaledImg.getSubimage(x0, y0, 256, 256);
+        // Only render the part of the upscaled base tile we need
+        BufferedImage subImg = ImageScaler.scaleRegion(img, upscale, upscale, x0, y0, 256, 256, SCALE_FILTER);
 
-        List<Element> mapsAtScale = XmlStreamsUtil.getElementsByTagAndAttrEqVal(getData().getRoot(), "map", "scalef", Integer.toString(z));
         Graphics2D g2d = subImg.createGraphics();
 
-        for (Element map : mapsAtScale) {
-            double px = Double.parseDouble(map.getAttribute("x"));
-            double py = Double.parseDouble(map.getAttribute("y"));
-            BufferedImage partImg = ImageIO.read(Data.ROOT_ABS_PATH.resolve(map.getAttribute("file")).toFile());
-            int pw = partImg.getWidth();
-            int ph = partImg.getHeight();
-            LOGGER.info("px={}, py={}, pw={}, ph={}", px, py, pw, ph);
-            if ((px < x + 1) && (px + pw / 256.0 > x)
-                    && (py < y + 1) && (py + ph / 256.0 > y)) {
-                int ix = (int) ((px - x) * 256);
-                int iy = (int) ((py - y) * 256);
-                g2d.drawImage(partImg, ix, iy, null);
+        try (Trace.Span span = Trace.span("overlays")) {
+            for (OverlayIndex.Overlay overlay : overlays.query(getData(), z, x, y)) {
+                g2d.drawImage(overlay.getImage(), overlay.offsetX(x), overlay.offsetY(y), null);
             }
         }
         g2d.dispose();
 
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(subImg, f, baos);
-        return baos.toByteArray();
+        return ImageEncoder.encode(subImg, f);
     }
 }
@@ -0,0 +1,237 @@
+package miju.rpg.ugmt.maps;
+
+import static miju.rpg.ugmt.XmlNames.Attributes.FILE;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import miju.rpg.ugmt.Data;
+import miju.rpg.ugmt.Metrics;
+import miju.rpg.ugmt.Utils;
+import miju.rpg.ugmt.XmlStreamsUtil;
+
+/**
+ * Grid index of the overlay <b>map</b> elements. Each zoom level gets its own
+ * buckets, one per leaflet.js tile, holding the overlays that cover that tile.
+ * Extents are taken from the image headers only; the overlay images are
+ * decoded when a tile actually needs them and are then kept (softly) cached.
+ * The index is rebuilt when the data document is reloaded. Only the
+ * attributes of the overlays are read under the lock of the data; the index
+ * is built and the image headers are read after it is released.
+ */
+final class OverlayIndex {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(OverlayIndex.class);
+
+    /** Tile size in pixels. */
+    private static final int TILE = 256;
+
+    /** Overlays still decoded. */
+    private static final LongAdder HITS = Metrics.hits("overlays");
+
+    /** Overlays decoded. */
+    private static final LongAdder MISSES = Metrics.misses("overlays");
+
+    /** Data document the buckets were built from. */
+    private Document indexedRoot;
+
+    /** Zoom level to tile buckets. */
+    private final Map<Integer, Map<Long, List<Overlay>>> zooms = new HashMap<>();
+
+    /** Decoded overlay images. */
+    private final Map<Path, SoftReference<BufferedImage>> images = new ConcurrentHashMap<>();
+
+    /**
+     * Get the overlays intersecting a tile.
+     * @param data data
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @return overlays to draw onto the tile
+     */
+    synchronized List<Overlay> query(final Data data, final int z, final int x, final int y) {
+        final Document root;
+        List<String[]> maps = null;
+        synchronized (data) {
+            root = data.getRoot();
+            if (root != indexedRoot || !zooms.containsKey(z)) {
+                maps = attributes(root, z);
+            }
+        }
+        if (root != indexedRoot) {
+            zooms.clear();
+            images.clear();
+            indexedRoot = root;
+        }
+        Map<Long, List<Overlay>> buckets = zooms.get(z);
+        if (buckets == null) {
+            buckets = build(maps, z);
+            zooms.put(z, buckets);
+        }
+        final List<Overlay> ret = new ArrayList<>();
+        for (Overlay overlay : buckets.getOrDefault(cell(x, y), Collections.emptyList())) {
+            if (overlay.intersects(x, y)) {
+                ret.add(overlay);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Copy the attributes of the overlays of a zoom level. Call under the
+     * lock of the data.
+     * @param root data document
+     * @param z zoom level
+     * @return file, x and y of each overlay
+     */
+    private static List<String[]> attributes(final Document root, final int z) {
+        final List<String[]> ret = new ArrayList<>();
+        for (Element map : XmlStreamsUtil.getElementsByTagAndAttrEqVal(root, "map", "scalef", Integer.toString(z))) {
+            ret.add(new String[] {map.getAttribute(FILE), map.getAttribute("x"), map.getAttribute("y")});
+        }
+        return ret;
+    }
+
+    /**
+     * Build the buckets for a zoom level.
+     * @param maps file, x and y of each overlay
+     * @param z zoom level
+     * @return tile buckets
+     */
+    private Map<Long, List<Overlay>> build(final List<String[]> maps, final int z) {
+        final Map<Long, List<Overlay>> ret = new HashMap<>();
+        for (String[] map : maps) {
+            final Overlay overlay;
+            try {
+                overlay = new Overlay(map[0], map[1], map[2]);
+            }
+            catch (final IOException | RuntimeException e) {
+                LOGGER.error("overlay file={} skipped", map[0], e);
+                continue;
+            }
+            final int x1 = (int) Math.ceil(overlay.px + overlay.pw / (double) TILE);
+            final int y1 = (int) Math.ceil(overlay.py + overlay.ph / (double) TILE);
+            for (int cx = (int) Math.floor(overlay.px); cx < x1; cx++) {
+                for (int cy = (int) Math.floor(overlay.py); cy < y1; cy++) {
+                    ret.computeIfAbsent(cell(cx, cy), k -> new ArrayList<>()).add(overlay);
+                }
+            }
+        }
+        LOGGER.info("z={} overlay cells={}", z, ret.size());
+        return ret;
+    }
+
+    /**
+     * Bucket key.
+     * @param x tile x
+     * @param y tile y
+     * @return combined key
+     */
+    private static long cell(final int x, final int y) {
+        return ((long) x << Integer.SIZE) | (y & 0xffffffffL);
+    }
+
+    /**
+     * One overlay map with its extent in tile units.
+     */
+    final class Overlay {
+        /** Image file. */
+        private final Path absPath;
+
+        /** Left position in tiles. */
+        private final double px;
+
+        /** Top position in tiles. */
+        private final double py;
+
+        /** Width in pixels. */
+        private final int pw;
+
+        /** Height in pixels. */
+        private final int ph;
+
+        /**
+         * Constructor.
+         * @param file image file of the map element
+         * @param x left of the map element in tiles
+         * @param y top of the map element in tiles
+         * @throws IOException on image header problems
+         */
+        private Overlay(final String file, final String x, final String y) throws IOException {
+            absPath = Data.ROOT_ABS_PATH.resolve(file);
+            px = Double.parseDouble(x);
+            py = Double.parseDouble(y);
+            final int[] size = Utils.readImageSize(absPath);
+            pw = size[0];
+            ph = size[1];
+        }
+
+        /**
+         * Exact intersection test.
+         * @param x tile x
+         * @param y tile y
+         * @return overlay covers part of the tile
+         */
+        private boolean intersects(final int x, final int y) {
+            return (px < x + 1) && (px + pw / (double) TILE > x)
+                    && (py < y + 1) && (py + ph / (double) TILE > y);
+        }
+
+        /**
+         * Pixel offset of the overlay within a tile.
+         * @param x tile x
+         * @return horizontal offset
+         */
+        int offsetX(final int x) {
+            return (int) ((px - x) * TILE);
+        }
+
+        /**
+         * Pixel offset of the overlay within a tile.
+         * @param y tile y
+         * @return vertical offset
+         */
+        int offsetY(final int y) {
+            return (int) ((py - y) * TILE);
+        }
+
+        /**
+         * Get the decoded image, from cache if possible.
+         * @return overlay image
+         * @throws IOException on error
+         */
+        BufferedImage getImage() throws IOException {
+            final SoftReference<BufferedImage> ref = images.get(absPath);
+            BufferedImage ret = null;
+            if (ref != null) {
+                ret = ref.get();
+            }
+            if (ret != null) {
+                HITS.increment();
+            }
+            else {
+                MISSES.increment();
+                LOGGER.info("decode overlay={}", absPath);
+                ret = ImageIO.read(absPath.toFile());
+                images.put(absPath, new SoftReference<>(ret));
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package miju.rpg.ugmt.maps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Storage of rendered map tiles, addressed like leaflet.js does it.
+ */
+interface TileStore {
+    /**
+     * Create the store configured in the properties: <b>MAPS_STORE</b> is
+     * either <em>directory</em> (one file per tile) or <em>archive</em> (one
+     * memory-mapped file).
+     * @param absRoot root directory of the tiles
+     * @param type store type
+     * @return tile store
+     * @throws IOException on error
+     */
+    static TileStore create(final Path absRoot, final String type) throws IOException {
+        final TileStore directory = new DirectoryTileStore(absRoot);
+        if ("archive".equals(type)) {
+            return new ArchiveTileStore(absRoot.resolve(ArchiveTileStore.FILE_NAME), directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Check for a tile.
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @param f image format
+     * @return tile is available
+     * @throws IOException on error
+     */
+    boolean contains(int z, int x, int y, String f) throws IOException;
+
+    /**
+     * Read a tile for further processing.
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @param f image format
+     * @return encoded tile
+     * @throws IOException on error
+     */
+    byte[] read(int z, int x, int y, String f) throws IOException;
+
+    /**
+     * Get a tile in a form the HTTP worker can stream without copying, i.e. a
+     * <em>File</em> or a <em>ByteBuffer</em>.
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @param f image format
+     * @return tile content
+     * @throws IOException on error
+     */
+    Object serve(int z, int x, int y, String f) throws IOException;
+
+    /**
+     * Store a tile. Readers must never see a partially written tile.
+     * @param z zoom level
+     * @param x x coordinate as per leaflet.js
+     * @param y y coordinate as per leaflet.js
+     * @param f image format
+     * @param bytes encoded tile
+     * @throws IOException on error
+     */
+    void write(int z, int x, int y, String f, byte[] bytes) throws IOException;
+}
@@ -0,0 +1,31 @@
+package miju.rpg.ugmt.metrics;
+
+import java.io.UnsupportedEncodingException;
+
+import miju.rpg.ugmt.AbstractMain;
+import miju.rpg.ugmt.HttpQueryParams;
+import miju.rpg.ugmt.Metrics;
+
+/**
+ * Main launch class. Serves the server's {@link Metrics} to the GM in the
+ * Prometheus text format, e.g. <em>/ugmt.metrics</em>.
+ */
+public class Main extends AbstractMain { // NO_UCD (unused code)
+    @Override
+    public String getContentType(final HttpQueryParams args) throws UnsupportedEncodingException {
+        return "text/plain; version=0.0.4; charset=utf-8";
+    }
+
+    @Override
+    public String getCacheControl(final HttpQueryParams args) throws UnsupportedEncodingException {
+        return "no-store";
+    }
+
+    @Override
+    public Object getContent(final HttpQueryParams args, final boolean gm) throws Exception {
+        if (!gm) {
+            return "";
+        }
+        return Metrics.scrape();
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Metrics package.
+ */
+package miju.rpg.ugmt.metrics;
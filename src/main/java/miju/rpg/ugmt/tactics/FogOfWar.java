@@ -0,0 +1,273 @@
+package miju.rpg.ugmt.tactics;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import miju.rpg.ugmt.Utils;
+
+/**
+ * Visibility mask of a tactical map. The map is divided into tiles of
+ * {@link #TILE} pixels at scale 1 and each tile into cells of <b>TACTICS_FOG_CELL</b>
+ * pixels; a tile's mask is a bitset with one bit per cell, set for revealed
+ * cells. Tiles without a mask are revealed or hidden as a whole according to
+ * the default, so a map without fog costs nothing. The mask is persisted
+ * next to the tile cache.
+ */
+final class FogOfWar {
+    /** Visibility of a region. */
+    enum Visibility {
+        /** All cells revealed. */
+        REVEALED,
+        /** Some cells revealed. */
+        PARTIAL,
+        /** No cell revealed. */
+        HIDDEN
+    }
+
+    /** Tile size at scale 1. */
+    static final int TILE = 256;
+
+    /** File format version. */
+    private static final int VERSION = 1;
+
+    /** Cell size in pixels at scale 1. */
+    private final int cell = Integer.getInteger("TACTICS_FOG_CELL", 16);
+
+    /** Cells per tile side. */
+    private final int cells = TILE / cell;
+
+    /** Persisted mask. */
+    private final Path absFile;
+
+    /** Masks by tile key. */
+    private final Map<Long, BitSet> masks = new HashMap<>();
+
+    /** Visibility of tiles without a mask. */
+    private boolean revealedByDefault = true;
+
+    /** Number of changes, to tell whether something rendered is still current. */
+    private long version;
+
+    /**
+     * Constructor. Loads the persisted mask, if there is one.
+     * @param anAbsFile mask file
+     * @throws IOException on error
+     */
+    FogOfWar(final Path anAbsFile) throws IOException {
+        absFile = anAbsFile;
+        if (Files.exists(absFile)) {
+            try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(absFile)))) {
+                if (dis.readInt() != VERSION || dis.readInt() != cell) {
+                    // Other format or cell size: start over
+                    return;
+                }
+                revealedByDefault = dis.readBoolean();
+                final int n = dis.readInt();
+                for (int i = 0; i < n; i++) {
+                    final long key = dis.readLong();
+                    final long[] words = new long[dis.readInt()];
+                    for (int j = 0; j < words.length; j++) {
+                        words[j] = dis.readLong();
+                    }
+                    masks.put(key, BitSet.valueOf(words));
+                }
+            }
+        }
+    }
+
+    /**
+     * Is there any fog at all?
+     * @return some cell is hidden
+     */
+    synchronized boolean isActive() {
+        return !revealedByDefault || !masks.isEmpty();
+    }
+
+    /**
+     * Reveal or hide the whole map.
+     * @param reveal reveal or hide
+     * @throws IOException on error
+     */
+    synchronized void changeAll(final boolean reveal) throws IOException {
+        masks.clear();
+        revealedByDefault = reveal;
+        version++;
+        save();
+    }
+
+    /**
+     * Reveal or hide a rectangle. Cells touched by the rectangle change.
+     * @param x left at scale 1
+     * @param y top at scale 1
+     * @param w width at scale 1
+     * @param h height at scale 1
+     * @param reveal reveal or hide
+     * @return whether anything changed
+     * @throws IOException on error
+     */
+    synchronized boolean change(final int x, final int y, final int w, final int h, final boolean reveal) throws IOException {
+        boolean changed = false;
+        final int cx0 = Math.max(0, x) / cell;
+        final int cy0 = Math.max(0, y) / cell;
+        final int cx1 = (x + w - 1) / cell;
+        final int cy1 = (y + h - 1) / cell;
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                final long key = key(cx / cells, cy / cells);
+                BitSet mask = masks.get(key);
+                if (mask == null) {
+                    if (reveal == revealedByDefault) {
+                        continue;
+                    }
+                    mask = new BitSet(cells * cells);
+                    if (revealedByDefault) {
+                        mask.set(0, cells * cells);
+                    }
+                    masks.put(key, mask);
+                }
+                final int bit = (cy % cells) * cells + cx % cells;
+                if (mask.get(bit) != reveal) {
+                    mask.set(bit, reveal);
+                    changed = true;
+                }
+            }
+        }
+        // Masks equal to the default are not needed
+        masks.values().removeIf(mask -> (revealedByDefault && mask.cardinality() == cells * cells)
+                || (!revealedByDefault && mask.isEmpty()));
+        if (changed) {
+            version++;
+            save();
+        }
+        return changed;
+    }
+
+    /**
+     * Get the number of changes so far.
+     * @return version of the mask
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the visibility of a region.
+     * @param x0 left at scale 1
+     * @param y0 top at scale 1
+     * @param x1 right at scale 1 (exclusive)
+     * @param y1 bottom at scale 1 (exclusive)
+     * @return visibility
+     */
+    synchronized Visibility visibility(final double x0, final double y0, final double x1, final double y1) {
+        boolean anyRevealed = false;
+        boolean anyHidden = false;
+        for (int cy = (int) Math.floor(y0 / cell); cy * cell < y1; cy++) {
+            for (int cx = (int) Math.floor(x0 / cell); cx * cell < x1; cx++) {
+                if (isRevealed(cx, cy)) {
+                    anyRevealed = true;
+                }
+                else {
+                    anyHidden = true;
+                }
+                if (anyRevealed && anyHidden) {
+                    return Visibility.PARTIAL;
+                }
+            }
+        }
+        if (anyHidden) {
+            return Visibility.HIDDEN;
+        }
+        return Visibility.REVEALED;
+    }
+
+    /**
+     * Paint the hidden cells of a tile black.
+     * @param g graphics of the tile
+     * @param x left of the tile on the scaled map
+     * @param y top of the tile on the scaled map
+     * @param size tile size
+     * @param scale scale of the map
+     */
+    synchronized void paintHidden(final Graphics2D g, final int x, final int y, final int size, final double scale) {
+        g.setColor(Color.BLACK);
+        final double x0 = x / scale;
+        final double y0 = y / scale;
+        final double x1 = (x + size) / scale;
+        final double y1 = (y + size) / scale;
+        for (int cy = (int) Math.floor(y0 / cell); cy * cell < y1; cy++) {
+            for (int cx = (int) Math.floor(x0 / cell); cx * cell < x1; cx++) {
+                if (!isRevealed(cx, cy)) {
+                    final int px = (int) Math.floor(cx * cell * scale) - x;
+                    final int py = (int) Math.floor(cy * cell * scale) - y;
+                    final int pw = (int) Math.ceil((cx + 1) * cell * scale) - x - px;
+                    final int ph = (int) Math.ceil((cy + 1) * cell * scale) - y - py;
+                    g.fillRect(px, py, pw, ph);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check a cell.
+     * @param cx cell column
+     * @param cy cell row
+     * @return revealed
+     */
+    private boolean isRevealed(final int cx, final int cy) {
+        if (cx < 0 || cy < 0) {
+            return revealedByDefault;
+        }
+        final BitSet mask = masks.get(key(cx / cells, cy / cells));
+        if (mask == null) {
+            return revealedByDefault;
+        }
+        return mask.get((cy % cells) * cells + cx % cells);
+    }
+
+    /**
+     * Tile key.
+     * @param tx tile column
+     * @param ty tile row
+     * @return key
+     */
+    private static long key(final int tx, final int ty) {
+        return ((long) tx << 32) | (ty & 0xffffffffL);
+    }
+
+    /**
+     * Persist the mask.
+     * @throws IOException on error
+     */
+    private void save() throws IOException {
+        if (!isActive()) {
+            Files.deleteIfExists(absFile);
+            return;
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(VERSION);
+            dos.writeInt(cell);
+            dos.writeBoolean(revealedByDefault);
+            dos.writeInt(masks.size());
+            for (Map.Entry<Long, BitSet> entry : masks.entrySet()) {
+                final long[] words = entry.getValue().toLongArray();
+                dos.writeLong(entry.getKey());
+                dos.writeInt(words.length);
+                for (long word : words) {
+                    dos.writeLong(word);
+                }
+            }
+        }
+        Utils.writeAtomically(absFile, baos.toByteArray());
+    }
+}
@@ -1,22 +1,44 @@
 package miju.rpg.ugmt.tactics;
 
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.imageio.ImageIO;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
 
 import miju.rpg.ugmt.AbstractMain;
 import miju.rpg.ugmt.Data;
 import miju.rpg.ugmt.HttpQueryParams;
 import miju.rpg.ugmt.HttpServer;
+import miju.rpg.ugmt.ImageEncoder;
+import miju.rpg.ugmt.ImageScaler;
+import miju.rpg.ugmt.Metrics;
+import miju.rpg.ugmt.MimeType;
+import miju.rpg.ugmt.Trace;
+import miju.rpg.ugmt.Utils;
 import static miju.rpg.ugmt.XmlNames.Attributes.PERMIT;
 import static miju.rpg.ugmt.XmlNames.Attributes.FILE;
 import static miju.rpg.ugmt.XmlNames.Attributes.ID;
@@ -24,6 +46,7 @@ import static miju.rpg.ugmt.XmlNames.Attributes.ID;
 /**
  * Main launch class.
  */
+@SuppressWarnings("try") // spans, see Trace
 public class Main extends AbstractMain { // NO_UCD (unused code)
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
@@ -31,15 +54,65 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
     /** Helper string constant. */
     private static final String PNG = "png";
 
+    /** Helper string constant. */
+    private static final String REVEAL = "reveal";
+
+    /** Helper string constant. */
+    private static final String HIDE = "hide";
+
+    /** Helper string constant. */
+    private static final String MOVE = "move";
+
+    /** Helper string constant. */
+    private static final String REMOVE = "remove";
+
+    /** Helper string constant. */
+    private static final String TOKENS = "tokens";
+
     /** Helper string constant. */
     private static final Path CACHE_REL_PATH = Paths.get("cache");
 
-    /** Empty default image. */
-    private static final BufferedImage EMPTY = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+    /** Tile size. */
+    private static final int TILE = 256;
+
+    /** Side of the area of a fog change on maps of unknown size. */
+    private static final int MAX_FOG_SIDE = 1 << 16;
+
+    /** Tiles served from the cache. */
+    private static final LongAdder TILE_HITS = Metrics.hits("tiles");
+
+    /** Tiles rendered. */
+    private static final LongAdder TILE_MISSES = Metrics.misses("tiles");
+
+    /** Fogged tiles served from the cache. */
+    private static final LongAdder FOG_HITS = Metrics.hits("fogged_tiles");
+
+    /** Fogged tiles composited. */
+    private static final LongAdder FOG_MISSES = Metrics.misses("fogged_tiles");
+
+    /** Empty default tile. */
+    private static byte[] empty;
+
+    /** Fully fogged tile. */
+    private static byte[] black;
+
+    /** Visibility masks by map id. */
+    private final Map<String, FogOfWar> fogs = new HashMap<>();
+
+    /** Fogged tiles being composited, by file and mask version. */
+    private final Map<String, CompletableFuture<byte[]>> fogging = new ConcurrentHashMap<>();
+
+    /** Maps being sliced. */
+    private final Set<String> slicing = ConcurrentHashMap.newKeySet();
+
+    /** Token positions. */
+    private final TokenState tokens = new TokenState(getPluginId());
 
     @Override
     public String getContentType(final HttpQueryParams args) throws UnsupportedEncodingException {
-        if (args.getSet() != null) {
+        if (args.getSet() != null || args.getValue(REVEAL, true) != null || args.getValue(HIDE, true) != null
+                || args.getValue(MOVE, true) != null || args.getValue(REMOVE, true) != null
+                || args.getValue(TOKENS, true) != null) {
             return "text/plain;";
         }
         if (args.getId() != null) {
@@ -48,13 +121,21 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
         return super.getContentType(args);
     }
 
+    @Override
+    public String getCacheControl(final HttpQueryParams args) {
+        // Tiles change when a map is (re)set
+        return MimeType.REVALIDATE;
+    }
+
     @Override
     public Object getContent(final HttpQueryParams args, final boolean gm) throws Exception {
         final String set = args.getSet();
         String mapId = "";
-        if (set != null) {
+        if (set != null && gm) {
             mapId = set;
-            HttpServer.push(getPluginId(), ID + "=" + mapId + ":set=true");
+            if (slice(set)) {
+                HttpServer.push(getPluginId(), ID + "=" + mapId + ":set=true");
+            }
             return "";
         }
 
@@ -68,12 +149,41 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
         final String y = args.getValue("y", true);
         final String scale = args.getValue("scale", true);
 
+        final String reveal = args.getValue(REVEAL, true);
+        final String hide = args.getValue(HIDE, true);
+        if (id != null && gm && (reveal != null || hide != null)) {
+            final Element map = getMap(id, gm);
+            if (map == null) {
+                return "";
+            }
+            if (reveal != null) {
+                changeFog(map, id, reveal, true);
+            }
+            else {
+                changeFog(map, id, hide, false);
+            }
+            return "";
+        }
+
+        // Tokens: move=token,x,y, remove=token (GM) or tokens=all to list them
+        final String move = args.getValue(MOVE, true);
+        if (id != null && move != null) {
+            move(id, move, gm);
+            return "";
+        }
+        final String remove = args.getValue(REMOVE, true);
+        if (id != null && gm && remove != null) {
+            if (getMap(id, gm) != null) {
+                tokens.remove(id, remove);
+            }
+            return "";
+        }
+        if (id != null && args.getValue(TOKENS, true) != null) {
+            return getMap(id, gm) == null ? "" : tokens.list(id);
+        }
+
         if (id != null) {
-            final BufferedImage ret = getCachedImage(id, Integer.parseInt(x),
-                    Integer.parseInt(y), Double.parseDouble(scale), gm);
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(ret, PNG, baos);
-            return baos.toByteArray();
+            return getCachedTile(id, Integer.parseInt(x), Integer.parseInt(y), Double.parseDouble(scale), gm);
         }
 
         return super.getContent(args, gm);
@@ -82,46 +192,466 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
     /**
      * This method allows for the GM to view the map and a player may then also
      * see it. But that implies hacking already, since the tagged list does not
-     * show the image. TODO scale
+     * show the image. Cached tiles are served as stored, i.e. a tile is only
+     * decoded and encoded when it is missing from the cache. Players get the
+     * tiles with the fog of war applied.
      * @param id id of map
      * @param x x coordinate on map
      * @param y y coordinate of map
      * @param scale scale of map requested
      * @param gm GM query?
-     * @return Image containing the (tile of the) map requested
+     * @return cached tile file or PNG bytes of the (tile of the) map requested
      * @throws IOException in case of error
      */
-    private BufferedImage getCachedImage(final String id, final int x, final int y, final double scale, final boolean gm) throws IOException {
-        final Path absDirPath = Data.ROOT_ABS_PATH.resolve(CACHE_REL_PATH.resolve(id));
-        if (!Files.exists(absDirPath)) {
-            Files.createDirectory(absDirPath);
+    private Object getCachedTile(final String id, final int x, final int y, final double scale, final boolean gm) throws IOException {
+        final Element map = getMap(id, gm);
+        if (map == null) {
+            return getEmpty();
+        }
+        if (!gm && getFog(id).isActive()) {
+            return getFoggedTile(map, id, x, y, scale);
+        }
+        return getBaseTile(map, id, x, y, scale);
+    }
+
+    /**
+     * Get a map the user may see.
+     * @param id id of map
+     * @param gm GM query?
+     * @return map element or null, if there is no such map or it is not permitted
+     */
+    private Element getMap(final String id, final boolean gm) {
+        final Element ret = getData().copyElementById(id);
+        if (ret == null || "".equals(ret.getAttribute(FILE)) || !(gm || "true".equals(ret.getAttribute(PERMIT)))) {
+            return null;
         }
+        return ret;
+    }
+
+    /**
+     * Move a token. The GM moves any token, players only those of permitted
+     * elements, e.g. their characters. Malformed moves are ignored.
+     * @param id id of map
+     * @param move <em>token,x,y</em> at scale 1
+     * @param gm GM query?
+     */
+    private void move(final String id, final String move, final boolean gm) {
+        final String[] parts = move.split(",");
+        if (parts.length != 3 || parts[0].isEmpty() || getMap(id, gm) == null) {
+            return;
+        }
+        if (!gm) {
+            final Element token = getData().copyElementById(parts[0]);
+            if (token == null || !"true".equals(token.getAttribute(PERMIT))) {
+                return;
+            }
+        }
+        try {
+            tokens.move(id, parts[0], Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+        }
+        catch (final NumberFormatException e) {
+            LOGGER.debug("bad move={}", move);
+        }
+    }
+
+    /**
+     * Get a tile as is.
+     * @param map map element
+     * @param id id of map
+     * @param x x coordinate on map
+     * @param y y coordinate of map
+     * @param scale scale of map requested
+     * @return cached tile file or PNG bytes
+     * @throws IOException in case of error
+     */
+    private Object getBaseTile(final Element map, final String id, final int x, final int y, final double scale) throws IOException {
         final Path absFilePath = Data.ROOT_ABS_PATH.resolve(makeCacheName(id, x, y, scale));
         if (Files.exists(absFilePath)) {
-            return ImageIO.read(absFilePath.toFile());
+            TILE_HITS.increment();
+            return absFilePath.toFile();
         }
+        TILE_MISSES.increment();
 
-        final String tiles = getData().getElementById(id).getAttribute("tiles");
-        final String fname = getData().getElementById(id).getAttribute(FILE);
-        final String permit = getData().getElementById(id).getAttribute(PERMIT);
-
-        if (gm || "true".equals(permit)) {
-            final BufferedImage bi = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        final String tiles = map.getAttribute("tiles");
+        final String fname = map.getAttribute(FILE);
+        final BufferedImage bi = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+        try (Trace.Span span = Trace.span("tile")) {
             if (tiles != null && !"".equals(tiles)) {
                 final Path relTileFile = buildTileFileName(x, y, tiles, fname);
                 LOGGER.debug("relTileFile={}", relTileFile);
                 final BufferedImage orig = ImageIO.read(Data.ROOT_ABS_PATH.resolve(relTileFile).toFile());
                 bi.getGraphics().drawImage(orig, 0, 0, null);
-                ImageIO.write(bi, PNG, absFilePath.toFile());
             }
             else {
-                final BufferedImage orig = ImageIO.read(absFilePath.toFile());
-                bi.getGraphics().drawImage(orig, -x, -y, null);
-                ImageIO.write(bi, PNG, absFilePath.toFile());
+                final BufferedImage orig = ImageIO.read(Data.ROOT_ABS_PATH.resolve(fname).toFile());
+                drawTile(orig, x, y, scale, bi);
+            }
+        }
+        final byte[] ret = ImageEncoder.encode(bi, PNG);
+        Utils.writeAtomically(absFilePath, ret);
+        return ret;
+    }
+
+    /**
+     * Get a tile with the hidden cells blacked out. Partially hidden tiles are
+     * composited once and cached until the fog changes there. Compositing
+     * runs outside the lock of the mask; concurrent requests for the same
+     * tile and mask version wait for the first one, and a tile whose mask
+     * changed meanwhile is served but not cached.
+     * @param map map element
+     * @param id id of map
+     * @param x x coordinate on map
+     * @param y y coordinate of map
+     * @param scale scale of map requested
+     * @return cached tile file or PNG bytes
+     * @throws IOException in case of error
+     */
+    private Object getFoggedTile(final Element map, final String id, final int x, final int y, final double scale)
+            throws IOException {
+        final FogOfWar fog = getFog(id);
+        final FogOfWar.Visibility visibility;
+        final long version;
+        synchronized (fog) {
+            visibility = fog.visibility(x / scale, y / scale, (x + TILE) / scale, (y + TILE) / scale);
+            version = fog.getVersion();
+        }
+        if (visibility == FogOfWar.Visibility.HIDDEN) {
+            return getBlack();
+        }
+        if (visibility == FogOfWar.Visibility.REVEALED) {
+            return getBaseTile(map, id, x, y, scale);
+        }
+        final Path absFilePath = Data.ROOT_ABS_PATH.resolve(makeFogName(id, x, y, scale));
+        if (Files.exists(absFilePath)) {
+            FOG_HITS.increment();
+            return absFilePath.toFile();
+        }
+        final String key = absFilePath + "@" + version;
+        final CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        final CompletableFuture<byte[]> running = fogging.putIfAbsent(key, mine);
+        if (running != null) {
+            LOGGER.debug("waiting for fogged tile={}", key);
+            try {
+                return running.get();
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(key);
+            }
+            catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        try {
+            final byte[] ret = composite(map, id, x, y, scale, fog);
+            synchronized (fog) {
+                // Changes drop the cached tiles under this lock
+                if (fog.getVersion() == version) {
+                    Utils.writeAtomically(absFilePath, ret);
+                }
+            }
+            mine.complete(ret);
+            return ret;
+        }
+        catch (final IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            fogging.remove(key, mine);
+        }
+    }
+
+    /**
+     * Black out the hidden cells of a tile.
+     * @param map map element
+     * @param id id of map
+     * @param x x coordinate on map
+     * @param y y coordinate of map
+     * @param scale scale of map requested
+     * @param fog mask
+     * @return PNG bytes
+     * @throws IOException in case of error
+     */
+    private byte[] composite(final Element map, final String id, final int x, final int y, final double scale,
+            final FogOfWar fog) throws IOException {
+        FOG_MISSES.increment();
+        final Object base = getBaseTile(map, id, x, y, scale);
+        final BufferedImage orig;
+        if (base instanceof File) {
+            orig = ImageIO.read((File) base);
+        }
+        else {
+            orig = ImageIO.read(new ByteArrayInputStream((byte[]) base));
+        }
+        final BufferedImage bi = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+        try (Trace.Span span = Trace.span("fog")) {
+            final Graphics2D g = bi.createGraphics();
+            g.drawImage(orig, 0, 0, null);
+            fog.paintHidden(g, x, y, TILE, scale);
+            g.dispose();
+        }
+        return ImageEncoder.encode(bi, PNG);
+    }
+
+    /**
+     * Get the visibility mask of a map.
+     * @param id id of map
+     * @return mask
+     * @throws IOException in case of error
+     */
+    private synchronized FogOfWar getFog(final String id) throws IOException {
+        FogOfWar ret = fogs.get(id);
+        if (ret == null) {
+            ret = new FogOfWar(Data.ROOT_ABS_PATH.resolve(CACHE_REL_PATH.resolve(Paths.get(id, "fog.bin"))));
+            fogs.put(id, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Reveal or hide part of a map. Composited tiles in the changed area are
+     * dropped and the tiles of the <b>TACTICS_SCALES</b> there are pushed as
+     * <em>id=map:fog=x_y_scale,...</em>, or <em>fog=all</em>. The area is
+     * clipped to the map; malformed and empty areas are ignored.
+     * @param map map element
+     * @param id id of map
+     * @param area <em>all</em> or <em>x,y,w,h</em> at scale 1
+     * @param reveal reveal or hide
+     * @throws IOException in case of error
+     */
+    private void changeFog(final Element map, final String id, final String area, final boolean reveal) throws IOException {
+        final FogOfWar fog = getFog(id);
+        final Path absFogDir = Data.ROOT_ABS_PATH.resolve(CACHE_REL_PATH.resolve(Paths.get(id, "fog")));
+        if ("all".equals(area)) {
+            synchronized (fog) {
+                fog.changeAll(reveal);
+                dropFogged(absFogDir, null);
+            }
+            HttpServer.push(getPluginId(), ID + "=" + id + ":fog=all");
+            return;
+        }
+        final int[] clipped = clip(map, area);
+        if (clipped == null) {
+            LOGGER.debug("fog area={} ignored", area);
+            return;
+        }
+        final int ax = clipped[0];
+        final int ay = clipped[1];
+        final int aw = clipped[2];
+        final int ah = clipped[3];
+        final StringBuilder tiles = new StringBuilder();
+        synchronized (fog) {
+            if (!fog.change(ax, ay, aw, ah, reveal)) {
+                return;
+            }
+            for (String strScale : System.getProperty("TACTICS_SCALES", "1").split(",")) {
+                final double scale = Double.parseDouble(strScale.trim());
+                for (int y = (int) Math.floor(ay * scale / TILE) * TILE; y < (ay + ah) * scale; y += TILE) {
+                    for (int x = (int) Math.floor(ax * scale / TILE) * TILE; x < (ax + aw) * scale; x += TILE) {
+                        if (tiles.length() > 0) {
+                            tiles.append(',');
+                        }
+                        tiles.append(x).append('_').append(y).append('_').append(scale);
+                    }
+                }
+            }
+            dropFogged(absFogDir, new int[] {ax, ay, aw, ah});
+        }
+        HttpServer.push(getPluginId(), ID + "=" + id + ":fog=" + tiles);
+    }
+
+    /**
+     * Parse a fog area and clip it to the map. Maps whose size is unknown,
+     * e.g. maps made of tiles, clip to {@link #MAX_FOG_SIDE}.
+     * @param map map element
+     * @param area <em>x,y,w,h</em> at scale 1
+     * @return x, y, w, h or null, if malformed or empty
+     */
+    private static int[] clip(final Element map, final String area) {
+        final String[] parts = area.split(",");
+        if (parts.length != 4) {
+            return null;
+        }
+        final long[] xywh = new long[4];
+        try {
+            for (int i = 0; i < xywh.length; i++) {
+                xywh[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        catch (final NumberFormatException e) {
+            return null;
+        }
+        if (xywh[2] <= 0 || xywh[3] <= 0) {
+            return null;
+        }
+        int[] size = {MAX_FOG_SIDE, MAX_FOG_SIDE};
+        if ("".equals(map.getAttribute("tiles"))) {
+            try {
+                size = Utils.readImageSize(Data.ROOT_ABS_PATH.resolve(map.getAttribute(FILE)));
+            }
+            catch (final IOException e) {
+                LOGGER.warn("map={} size unknown, e={}", map.getAttribute(FILE), e.toString());
+            }
+        }
+        final long x0 = Math.max(0, xywh[0]);
+        final long y0 = Math.max(0, xywh[1]);
+        final long x1 = Math.min(size[0], xywh[0] + xywh[2]);
+        final long y1 = Math.min(size[1], xywh[1] + xywh[3]);
+        if (x1 <= x0 || y1 <= y0) {
+            return null;
+        }
+        return new int[] {(int) x0, (int) y0, (int) (x1 - x0), (int) (y1 - y0)};
+    }
+
+    /**
+     * Drop the composited tiles of any scale overlapping an area.
+     * @param absFogDir directory of the composited tiles
+     * @param area x, y, w, h at scale 1 or null for all
+     * @throws IOException in case of error
+     */
+    private static void dropFogged(final Path absFogDir, final int[] area) throws IOException {
+        if (!Files.isDirectory(absFogDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(absFogDir, "*.png")) {
+            for (Path absFile : stream) {
+                final String[] name = absFile.getFileName().toString().replace(".png", "").split("_");
+                final double scale = Double.parseDouble(name[2]);
+                final double x0 = Integer.parseInt(name[0]) / scale;
+                final double y0 = Integer.parseInt(name[1]) / scale;
+                if (area == null || (x0 < area[0] + area[2] && x0 + TILE / scale > area[0]
+                        && y0 < area[1] + area[3] && y0 + TILE / scale > area[1])) {
+                    Files.deleteIfExists(absFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cut a map into the tiles of all scales of <b>TACTICS_SCALES</b> (comma
+     * separated, default 1) and put them into the cache. The map is decoded
+     * once and the tiles are rendered and encoded in parallel. Tiles newer
+     * than the map are kept. Maps made of tiles already are left alone. A map
+     * being sliced is not sliced again meanwhile.
+     * @param id id of map
+     * @return false, if the map is being sliced already
+     * @throws IOException in case of error
+     */
+    private boolean slice(final String id) throws IOException {
+        if (!slicing.add(id)) {
+            LOGGER.debug("slicing={} already", id);
+            return false;
+        }
+        try {
+            slice(getData().copyElementById(id), id);
+            return true;
+        }
+        finally {
+            slicing.remove(id);
+        }
+    }
+
+    /**
+     * Cut a map into the tiles, see {@link #slice(String)}.
+     * @param map map element or null
+     * @param id id of map
+     * @throws IOException in case of error
+     */
+    private void slice(final Element map, final String id) throws IOException {
+        if (map == null || !"".equals(map.getAttribute("tiles")) || "".equals(map.getAttribute(FILE))) {
+            return;
+        }
+        final Path absSource = Data.ROOT_ABS_PATH.resolve(map.getAttribute(FILE));
+        final FileTime modified = Files.getLastModifiedTime(absSource);
+        final BufferedImage orig = ImageIO.read(absSource.toFile());
+        if (orig == null) {
+            throw new IOException("Unreadable map: " + absSource);
+        }
+
+        final List<double[]> jobs = new ArrayList<>();
+        for (String strScale : System.getProperty("TACTICS_SCALES", "1").split(",")) {
+            final double scale = Double.parseDouble(strScale.trim());
+            final int w = (int) Math.ceil(orig.getWidth() * scale);
+            final int h = (int) Math.ceil(orig.getHeight() * scale);
+            for (int y = 0; y < h; y += TILE) {
+                for (int x = 0; x < w; x += TILE) {
+                    jobs.add(new double[] {x, y, scale});
+                }
             }
-            return bi;
         }
-        return EMPTY;
+        LOGGER.info("slicing={} tiles={}", id, jobs.size());
+        try {
+            jobs.parallelStream().forEach(job -> {
+                final int x = (int) job[0];
+                final int y = (int) job[1];
+                final Path absFilePath = Data.ROOT_ABS_PATH.resolve(makeCacheName(id, x, y, job[2]));
+                try {
+                    if (Files.exists(absFilePath) && Files.getLastModifiedTime(absFilePath).compareTo(modified) >= 0) {
+                        return;
+                    }
+                    final BufferedImage bi = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+                    drawTile(orig, x, y, job[2], bi);
+                    Utils.writeAtomically(absFilePath, ImageEncoder.encode(bi, PNG));
+                }
+                catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Draw a tile of a scaled map. Only the part of the scaled map within the
+     * tile is rendered.
+     * @param orig map
+     * @param x x coordinate on scaled map
+     * @param y y coordinate on scaled map
+     * @param scale scale of map
+     * @param tile tile to draw into
+     */
+    private static void drawTile(final BufferedImage orig, final int x, final int y, final double scale, final BufferedImage tile) {
+        final int w = (int) Math.ceil(orig.getWidth() * scale);
+        final int h = (int) Math.ceil(orig.getHeight() * scale);
+        final int rw = Math.min(TILE, w - x);
+        final int rh = Math.min(TILE, h - y);
+        if (x < 0 || y < 0 || rw <= 0 || rh <= 0) {
+            return;
+        }
+        final Graphics2D g = tile.createGraphics();
+        g.drawImage(ImageScaler.scaleRegion(orig, w, h, x, y, rw, rh, ImageScaler.Filter.BICUBIC), 0, 0, null);
+        g.dispose();
+    }
+
+    /**
+     * Get the empty tile.
+     * @return PNG bytes
+     * @throws IOException on error
+     */
+    private static synchronized byte[] getEmpty() throws IOException {
+        if (empty == null) {
+            empty = ImageEncoder.encode(new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB), PNG);
+        }
+        return empty;
+    }
+
+    /**
+     * Get the fully fogged tile.
+     * @return PNG bytes
+     * @throws IOException on error
+     */
+    private static synchronized byte[] getBlack() throws IOException {
+        if (black == null) {
+            final BufferedImage bi = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_RGB);
+            black = ImageEncoder.encode(bi, PNG);
+        }
+        return black;
     }
 
     /**
@@ -148,4 +678,16 @@ public class Main extends AbstractMain { // NO_UCD (unused code)
     private Path makeCacheName(final String id, final int x, final int y, final double scale) {
         return CACHE_REL_PATH.resolve(Paths.get(id, x + "_" + y + "_" + scale + ".png"));
     }
+
+    /**
+     * Build a fogged tile cache (relative) file name.
+     * @param x x coordinate in overall map.
+     * @param y y coordinate in overall map.
+     * @param id overall map id
+     * @param scale current scale of map
+     * @return cache name
+     */
+    private Path makeFogName(final String id, final int x, final int y, final double scale) {
+        return CACHE_REL_PATH.resolve(Paths.get(id, "fog", x + "_" + y + "_" + scale + ".png"));
+    }
 }
@@ -0,0 +1,150 @@
+package miju.rpg.ugmt.tactics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import miju.rpg.ugmt.HttpServer;
+import static miju.rpg.ugmt.XmlNames.Attributes.ID;
+
+/**
+ * Token positions on the tactical maps. Positions are held in memory; moves
+ * are coalesced per token and pushed as one delta per map at a fixed tick
+ * rate of <b>TACTICS_TICK_HZ</b> (1 to 1000, default 20), so a dragged token costs the
+ * clients at most one message per tick, however often it is moved. A delta is
+ * <em>id=map:tokens=token@x_y,token@-,...</em>, where <em>-</em> marks a
+ * removed token.
+ */
+final class TokenState {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TokenState.class);
+
+    /** Marker of a removed token. */
+    private static final String REMOVED = "-";
+
+    /** Highest tick rate. */
+    private static final int MAX_TICK_HZ = 1000;
+
+    /** Plugin to push to. */
+    private final String pluginId;
+
+    /** Positions by map and token. */
+    private final Map<String, Map<String, String>> positions = new ConcurrentHashMap<>();
+
+    /** Changes since the last tick by map and token. */
+    private Map<String, Map<String, String>> pending = new LinkedHashMap<>();
+
+    /**
+     * Constructor. Starts the tick.
+     * @param aPluginId plugin to push to
+     */
+    TokenState(final String aPluginId) {
+        pluginId = aPluginId;
+        final int hz = Integer.getInteger("TACTICS_TICK_HZ", 20);
+        if (hz < 1 || hz > MAX_TICK_HZ) {
+            throw new IllegalArgumentException("TACTICS_TICK_HZ=" + hz);
+        }
+        final long period = 1000000L / hz;
+        final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread ret = new Thread(r, "tokens");
+            ret.setDaemon(true);
+            return ret;
+        });
+        ticker.scheduleAtFixedRate(this::flush, period, period, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Move a token.
+     * @param mapId map
+     * @param token token id
+     * @param x x coordinate on the map at scale 1
+     * @param y y coordinate on the map at scale 1
+     */
+    synchronized void move(final String mapId, final String token, final int x, final int y) {
+        final String pos = x + "_" + y;
+        positions.computeIfAbsent(mapId, k -> new ConcurrentHashMap<>()).put(token, pos);
+        record(mapId, token, pos);
+    }
+
+    /**
+     * Remove a token.
+     * @param mapId map
+     * @param token token id
+     */
+    synchronized void remove(final String mapId, final String token) {
+        final Map<String, String> tokens = positions.get(mapId);
+        if (tokens != null && tokens.remove(token) != null) {
+            record(mapId, token, REMOVED);
+        }
+    }
+
+    /**
+     * Get all tokens of a map, for clients joining.
+     * @param mapId map
+     * @return <em>token@x_y,...</em>
+     */
+    String list(final String mapId) {
+        final Map<String, String> tokens = positions.get(mapId);
+        if (tokens == null) {
+            return "";
+        }
+        return encode(tokens);
+    }
+
+    /**
+     * Remember a change for the next tick; later changes of a token replace
+     * earlier ones. Called under the lock of the change, so the last change
+     * of a position is the last one pushed.
+     * @param mapId map
+     * @param token token id
+     * @param pos position or removal marker
+     */
+    private void record(final String mapId, final String token, final String pos) {
+        pending.computeIfAbsent(mapId, k -> new LinkedHashMap<>()).put(token, pos);
+    }
+
+    /**
+     * Push the changes since the last tick.
+     */
+    private void flush() {
+        final Map<String, Map<String, String>> changes;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = pending;
+            pending = new LinkedHashMap<>();
+        }
+        try {
+            for (Map.Entry<String, Map<String, String>> entry : changes.entrySet()) {
+                HttpServer.push(pluginId, ID + "=" + entry.getKey() + ":tokens=" + encode(entry.getValue()));
+            }
+        }
+        catch (final RuntimeException e) {
+            // Keep ticking
+            LOGGER.error("", e);
+        }
+    }
+
+    /**
+     * Encode positions.
+     * @param tokens positions by token
+     * @return <em>token@pos,...</em>
+     */
+    private static String encode(final Map<String, String> tokens) {
+        final StringBuilder ret = new StringBuilder();
+        for (Map.Entry<String, String> entry : tokens.entrySet()) {
+            if (ret.length() > 0) {
+                ret.append(',');
+            }
+            ret.append(entry.getKey()).append('@').append(entry.getValue());
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package miju.rpg.ugmt.traces;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+import miju.rpg.ugmt.AbstractMain;
+import miju.rpg.ugmt.HttpQueryParams;
+import miju.rpg.ugmt.Trace;
+
+/**
+ * Main launch class. Draws the sampled {@link Trace}s for the GM as flame
+ * graphs, one per root span name, with the slowest spans first. The width of
+ * a span is its share of the root's time; hovering shows the times. The
+ * sample rate is changed with <em>sample=0.1</em> and the traces are
+ * forgotten with <em>reset=true</em>.
+ */
+public class Main extends AbstractMain { // NO_UCD (unused code)
+    /** Style of the page. */
+    private static final String STYLE = "body{font:12px sans-serif}.c{display:flex}.n{min-width:0}"
+            + ".l{height:16px;line-height:16px;margin:1px;padding:0 2px;overflow:hidden;white-space:nowrap;"
+            + "font:11px monospace;border-radius:2px}";
+
+    @Override
+    public String getContentType(final HttpQueryParams args) throws UnsupportedEncodingException {
+        return "text/html; charset=utf-8";
+    }
+
+    @Override
+    public String getCacheControl(final HttpQueryParams args) throws UnsupportedEncodingException {
+        return "no-store";
+    }
+
+    @Override
+    public Object getContent(final HttpQueryParams args, final boolean gm) throws Exception {
+        if (!gm) {
+            return "";
+        }
+        final String sample = args.getValue("sample", true);
+        if (sample != null) {
+            Trace.setSampleRate(Double.parseDouble(sample));
+        }
+        if ("true".equals(args.getValue("reset", true))) {
+            Trace.reset();
+        }
+
+        final StringBuilder ret = new StringBuilder("<!DOCTYPE html><html><head><title>Traces</title><style>")
+                .append(STYLE).append("</style></head><body><p>Sample rate ").append(Trace.getSampleRate())
+                .append(", <a href=\"?reset=true\">reset</a></p>");
+        for (Trace.Node root : Trace.getRoots()) {
+            ret.append(String.format(Locale.ROOT, "<h3>%s: %d traces, %.2f ms average</h3>", escape(root.getName()),
+                    root.getCount(), root.getNanos() / 1e6 / root.getCount()));
+            ret.append("<div class=\"c\">");
+            append(ret, root, root, 100, 0);
+            ret.append("</div>");
+        }
+        return ret.append("</body></html>").toString();
+    }
+
+    /**
+     * Draw a node and its children.
+     * @param out output
+     * @param root root of the node
+     * @param node node
+     * @param width width in percent of the parent
+     * @param depth depth, for the color
+     */
+    private static void append(final StringBuilder out, final Trace.Node root, final Trace.Node node, final double width,
+            final int depth) {
+        final double perTrace = 1e6 * root.getCount();
+        out.append(String.format(Locale.ROOT, "<div class=\"n\" style=\"flex:0 0 %.3f%%\">", width));
+        out.append(String.format(Locale.ROOT,
+                "<div class=\"l\" style=\"background:hsl(%d,80%%,70%%)\" title=\"%s&#10;%.3f ms per trace, %.1f%%&#10;"
+                        + "%d calls&#10;%.3f ms self per trace\">%s</div>",
+                (20 + 12 * depth) % 60, escape(node.getName()), node.getNanos() / perTrace,
+                100.0 * node.getNanos() / Math.max(1, root.getNanos()), node.getCount(), node.getSelfNanos() / perTrace,
+                escape(node.getName())));
+        out.append("<div class=\"c\">");
+        for (Trace.Node child : node.getChildren()) {
+            append(out, root, child, 100.0 * child.getNanos() / Math.max(1, node.getNanos()), depth + 1);
+        }
+        out.append("</div></div>");
+    }
+
+    /**
+     * Escape for HTML.
+     * @param str string
+     * @return escaped string
+     */
+    private static String escape(final String str) {
+        return str.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
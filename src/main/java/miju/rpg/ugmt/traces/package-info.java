@@ -0,0 +1,4 @@
+/**
+ * Traces package.
+ */
+package miju.rpg.ugmt.traces;